@@ -0,0 +1,108 @@
+package hudson.plugins.libvirt;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.LoadBalancer;
+import hudson.model.Queue;
+import hudson.model.queue.MappingWorksheet;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import hudson.model.queue.MappingWorksheet.Mapping;
+
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Prefers libvirt agents that already hold state useful to a task: the
+ * snapshot the job asked for, the workspace of the job that ran there last,
+ * or a domain freshly reset to its snapshot that does not need another
+ * revert. Without any preference the
+ * decision is left to the load balancer it decorates.
+ */
+public class AffinityLoadBalancer extends LoadBalancer {
+
+    private static final Logger LOGGER = Logger.getLogger(AffinityLoadBalancer.class.getName());
+
+    static final int SNAPSHOT = 4;
+    static final int SAME_JOB = 2;
+    static final int PRISTINE = 1;
+
+    private final LoadBalancer fallback;
+
+    public AffinityLoadBalancer(LoadBalancer fallback) {
+        this.fallback = fallback;
+    }
+
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void install() {
+        Queue queue = Jenkins.get().getQueue();
+        LoadBalancer current = queue.getLoadBalancer();
+        if (!(current instanceof AffinityLoadBalancer)) {
+            queue.setLoadBalancer(new AffinityLoadBalancer(current));
+        }
+    }
+
+    /**
+     * Scores how much placing the task on the computer saves.
+     *
+     * @param task     the task to place
+     * @param snapshot the snapshot the queued item asked for, see {@link SnapshotSelection#requiredSnapshot(Queue.Item)}
+     * @param c        the candidate computer
+     * @return 0 if there is nothing to gain, higher is better
+     */
+    static int score(Queue.Task task, String snapshot, Computer c) {
+        if (!(c instanceof VirtualMachineSlaveComputer)) {
+            return 0;
+        }
+        VirtualMachineSlaveComputer computer = (VirtualMachineSlaveComputer) c;
+        int score = 0;
+        if (snapshot != null && snapshot.equals(computer.getFreshSnapshot())) {
+            score += SNAPSHOT;
+        }
+        if (task.getOwnerTask().getFullDisplayName().equals(computer.getLastJobName())) {
+            score += SAME_JOB;
+        }
+        if (computer.isPristine()) {
+            score += PRISTINE;
+        }
+        return score;
+    }
+
+    @Override
+    public Mapping map(Queue.Task task, MappingWorksheet worksheet) {
+        // tasks spanning several chunks are rare, leave them to the default policy
+        if (worksheet.works.size() != 1) {
+            return fallback.map(task, worksheet);
+        }
+        List<ExecutorChunk> candidates = new ArrayList<>(worksheet.works(0).applicableExecutorChunks());
+        String snapshot = SnapshotSelection.requiredSnapshot(worksheet.item);
+        List<Integer> scores = new ArrayList<>();
+        for (ExecutorChunk chunk : candidates) {
+            scores.add(score(task, snapshot, chunk.computer));
+        }
+        if (scores.stream().allMatch(s -> s == 0)) {
+            return fallback.map(task, worksheet);
+        }
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparing((Integer i) -> scores.get(i)).reversed());
+        for (int i : order) {
+            Mapping mapping = worksheet.new Mapping();
+            mapping.assign(0, candidates.get(i));
+            if (mapping.isCompletelyValid()) {
+                LOGGER.log(Level.FINE, "Placing " + task.getFullDisplayName() + " on " + candidates.get(i).computer.getName()
+                                       + " by affinity " + scores.get(i) + ".");
+                return mapping;
+            }
+        }
+        return fallback.map(task, worksheet);
+    }
+}
@@ -0,0 +1,61 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.slaves.ComputerLauncher;
+
+import jenkins.model.Jenkins;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Inflates the memory balloon of agents that stayed online but idle for
+ * longer than their hypervisor allows, so that more agents can be kept warm
+ * on the same host. The agent grows back to its full memory as soon as it
+ * accepts a task, see {@link VirtualMachineSlaveComputer#taskAccepted}.
+ */
+@Extension
+public class BalloonReclaim extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(BalloonReclaim.class.getName());
+
+    public BalloonReclaim() {
+        super("Libvirt balloon reclaim");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        long now = System.currentTimeMillis();
+        for (Computer computer : Jenkins.get().getComputers()) {
+            if (!(computer instanceof VirtualMachineSlaveComputer)) {
+                continue;
+            }
+            VirtualMachineSlaveComputer vmComputer = (VirtualMachineSlaveComputer) computer;
+            ComputerLauncher launcher = vmComputer.getLauncher();
+            if (!(launcher instanceof VirtualMachineLauncher) || !vmComputer.isIdle() || vmComputer.isBallooned()) {
+                continue;
+            }
+            Hypervisor hypervisor;
+            try {
+                hypervisor = ((VirtualMachineLauncher) launcher).findOurHypervisorInstance();
+            } catch (VirtException e) {
+                LOGGER.log(Level.FINE, "No hypervisor for " + computer.getName() + ": " + e);
+                continue;
+            }
+            int idleMinutes = hypervisor.getBalloonIdleMinutes();
+            if (idleMinutes > 0 && now - vmComputer.getIdleStartMilliseconds() > TimeUnit.MINUTES.toMillis(idleMinutes)) {
+                vmComputer.shrinkBalloon(hypervisor.getBalloonPercent());
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.Job;
+
+import jenkins.model.OptionalJobProperty;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Names the snapshot a job needs its libvirt agent to be reverted to before
+ * it runs. A {@value SnapshotSelection#PARAMETER_NAME} build parameter
+ * overrides it per build.
+ */
+public class BeforeJobSnapshotJobProperty extends OptionalJobProperty<Job<?, ?>> {
+
+    private final String snapshotName;
+
+    @DataBoundConstructor
+    public BeforeJobSnapshotJobProperty(String snapshotName) {
+        this.snapshotName = snapshotName;
+    }
+
+    public String getSnapshotName() {
+        return snapshotName;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends OptionalJobPropertyDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Revert libvirt agent to a snapshot before the build";
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package hudson.plugins.libvirt;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent create-to-online durations of a domain booted from a given snapshot,
+ * used by {@link VirtualMachineLauncher} to time its connection attempts.
+ * Revert durations per domain are kept the same way to show regressions.
+ */
+public final class BootTimeStatistics {
+
+    static final int SAMPLES = 20;
+    static final int MIN_SAMPLES = 3;
+
+    private static final Map<String, BootTimeStatistics> STATISTICS = new ConcurrentHashMap<>();
+
+    private final long[] durations = new long[SAMPLES];
+    private int next;
+    private int count;
+
+    BootTimeStatistics() {
+    }
+
+    public static BootTimeStatistics of(String hypervisor, String virtualMachine, String snapshot) {
+        String key = hypervisor + "/" + virtualMachine + "@" + (snapshot == null ? "" : snapshot);
+        return STATISTICS.computeIfAbsent(key, k -> new BootTimeStatistics());
+    }
+
+    public static BootTimeStatistics revertsOf(String hypervisor, String virtualMachine) {
+        return STATISTICS.computeIfAbsent("revert:" + hypervisor + "/" + virtualMachine, k -> new BootTimeStatistics());
+    }
+
+    public synchronized void record(long durationMs) {
+        durations[next] = durationMs;
+        next = (next + 1) % SAMPLES;
+        if (count < SAMPLES) {
+            count++;
+        }
+    }
+
+    public synchronized boolean isReliable() {
+        return count >= MIN_SAMPLES;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the duration below which the given share of the recent boots
+     *         finished, or -1 if no boot was recorded yet
+     */
+    public synchronized long percentile(int percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(durations, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+}
@@ -0,0 +1,184 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.model.TaskListener;
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.plugins.libvirt.util.DomainXml;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A secondary disk for build caches that survives snapshot reverts. It is
+ * hot-plugged into the running domain after every start or revert and taken
+ * out again before a revert, so the OS disk goes back to its snapshot while
+ * the caches stay warm. Every agent gets a volume of its own in the given
+ * pool, capped at the configured size. With a reset period the volume is
+ * replaced by an empty one once per period, at a different time for every
+ * agent. A cache disk applies to the agents whose labels match its label
+ * expression, unless an agent names a cache disk of its own.
+ */
+public class CacheDisk extends AbstractDescribableImpl<CacheDisk> {
+
+    public static final String DEFAULT_TARGET = "vdz";
+    /** Serial the guest finds the disk by, e.g. as /dev/disk/by-id/virtio-jenkins-cache. */
+    public static final String SERIAL = "jenkins-cache";
+    private static final long GIB = 1024L * 1024 * 1024;
+
+    private final String name;
+    private final String labelString;
+    private final String poolName;
+    private final int sizeGb;
+    private final int resetDays;
+    private final String target;
+
+    @DataBoundConstructor
+    public CacheDisk(String name, String labelString, String poolName, int sizeGb, int resetDays, String target) {
+        this.name = name;
+        this.labelString = labelString;
+        this.poolName = poolName;
+        this.sizeGb = sizeGb;
+        this.resetDays = Math.max(0, resetDays);
+        this.target = Util.fixEmptyAndTrim(target);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLabelString() {
+        return labelString;
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    public int getSizeGb() {
+        return sizeGb;
+    }
+
+    public int getResetDays() {
+        return resetDays;
+    }
+
+    public String getTarget() {
+        return target == null ? DEFAULT_TARGET : target;
+    }
+
+    /**
+     * @param slave the agent
+     * @return the cache disk the agent names, else the first whose label
+     *         expression matches it, null if none
+     */
+    public static CacheDisk forNode(VirtualMachineSlave slave) {
+        LibvirtConfiguration config = LibvirtConfiguration.get();
+        if (config == null) {
+            return null;
+        }
+        String own = slave.getCacheDisk();
+        for (CacheDisk disk : config.getCacheDisks()) {
+            if (own != null) {
+                if (own.equals(disk.getName())) {
+                    return disk;
+                }
+            } else if (Util.fixEmptyAndTrim(disk.getLabelString()) != null
+                       && Label.parseExpression(disk.getLabelString()).matches(slave)) {
+                return disk;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param vmName the domain
+     * @param time   the current time in milliseconds
+     * @return the reset period the time falls into for this domain, 0 without resets
+     */
+    long generation(String vmName, long time) {
+        if (resetDays == 0) {
+            return 0;
+        }
+        // spread the resets of the agents over the period
+        long offset = (vmName.hashCode() & Integer.MAX_VALUE) % resetDays;
+        return (TimeUnit.MILLISECONDS.toDays(time) + offset) / resetDays;
+    }
+
+    String volumeName(String vmName, long generation) {
+        return vmName + "-" + name + "-cache-" + generation + ".qcow2";
+    }
+
+    String deviceXml(String path) {
+        String dev = getTarget();
+        StringBuilder sb = new StringBuilder();
+        sb.append("<disk type='file' device='disk'>");
+        sb.append("<driver name='qemu' type='qcow2' cache='writeback'/>");
+        sb.append("<source file='").append(StringEscapeUtils.escapeXml(path)).append("'/>");
+        sb.append("<target dev='").append(StringEscapeUtils.escapeXml(dev)).append("' bus='")
+          .append(dev.startsWith("vd") ? "virtio" : "scsi").append("'/>");
+        sb.append("<serial>").append(SERIAL).append("</serial>");
+        sb.append("</disk>");
+        return sb.toString();
+    }
+
+    /**
+     * Hot-plugs the cache volume of the current period into the running
+     * domain, creating it if needed and dropping the one of the previous
+     * period.
+     *
+     * @param hypervisor the hypervisor of the domain
+     * @param domain     the running domain
+     * @param listener   the launch log
+     * @throws VirtException if the volume cannot be created or attached
+     */
+    public void attach(Hypervisor hypervisor, IDomain domain, TaskListener listener) throws VirtException {
+        String vmName = domain.getName();
+        long generation = generation(vmName, System.currentTimeMillis());
+        String attached = DomainXml.diskSource(domain.getXMLDesc(), getTarget());
+        String path = hypervisor.ensureVolume(poolName, volumeName(vmName, generation), sizeGb * GIB);
+        if (path.equals(attached)) {
+            return;
+        }
+        if (attached != null) {
+            domain.detachDevice(deviceXml(attached));
+        }
+        if (generation > 0) {
+            String previous = hypervisor.findVolume(poolName, volumeName(vmName, generation - 1));
+            if (previous != null) {
+                listener.getLogger().println("Resetting the cache disk of " + vmName + ".");
+                hypervisor.deleteVolume(previous);
+            }
+        }
+        listener.getLogger().println("Attaching cache disk " + path + " as " + getTarget() + ".");
+        domain.attachDevice(deviceXml(path));
+    }
+
+    /**
+     * Takes the cache disk out of the running domain, if it is attached.
+     *
+     * @param domain the domain
+     * @throws VirtException if libvirt fails to detach the disk
+     */
+    public void detach(IDomain domain) throws VirtException {
+        String attached = DomainXml.diskSource(domain.getXMLDesc(), getTarget());
+        if (attached != null) {
+            domain.detachDevice(deviceXml(attached));
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<CacheDisk> {
+
+        @Override
+        public String getDisplayName() {
+            return "Cache disk";
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.slaves.Cloud;
+
+import jenkins.model.Jenkins;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Relieves members of hypervisor clusters that opted in with a rebalance
+ * threshold: while the member with the least headroom has more of its
+ * memory in use than the threshold, one idle agent domain per run is
+ * live-migrated from it to the member with the most headroom. A move only
+ * happens if it leaves the source with more headroom than the target, so
+ * domains do not bounce back and forth.
+ */
+@Extension
+public class ClusterRebalancer extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(ClusterRebalancer.class.getName());
+
+    public ClusterRebalancer() {
+        super("Libvirt cluster rebalancer");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return 5 * MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (cloud instanceof HypervisorCluster) {
+                rebalance((HypervisorCluster) cloud);
+            }
+        }
+    }
+
+    private void rebalance(HypervisorCluster cluster) {
+        int threshold = cluster.getRebalanceThresholdPercent();
+        if (threshold <= 0) {
+            return;
+        }
+        Hypervisor hottest = null;
+        Hypervisor coolest = null;
+        for (Hypervisor member : cluster.getMembers()) {
+            if (!cluster.isHealthy(member) || member.isDraining() || member.getBootsInFlight() > 0) {
+                continue;
+            }
+            if (hottest == null || member.getMemoryHeadroom() < hottest.getMemoryHeadroom()) {
+                hottest = member;
+            }
+            if (coolest == null || member.getMemoryHeadroom() > coolest.getMemoryHeadroom()) {
+                coolest = member;
+            }
+        }
+        if (hottest == null || hottest == coolest || hottest.getMemoryLoadPercent() <= threshold) {
+            return;
+        }
+        long gap = coolest.getMemoryHeadroom() - hottest.getMemoryHeadroom();
+        List<VirtualMachineSlave> slaves = cluster.getSlavesOn(hottest);
+        for (VirtualMachineSlave slave : slaves) {
+            Computer c = slave.toComputer();
+            if (c == null || !c.isOnline() || !c.isIdle()) {
+                continue;
+            }
+            try {
+                IDomain domain = hottest.getDomain(slave.getVirtualMachineName());
+                // moving must not turn the target into the new hottest member
+                if (domain == null || !domain.isRunningOrBlocked() || domain.snapshotNum() > 0
+                    || 2 * domain.getMaxMemory() > gap
+                    || !coolest.canMarkVMOnline(slave.getNodeName(), slave.getVirtualMachineName())) {
+                    continue;
+                }
+                LOGGER.log(Level.INFO, "Rebalancing cluster " + cluster.getName() + ": moving " + slave.getVirtualMachineName()
+                                       + " from " + hottest.getHypervisorHost() + " to " + coolest.getHypervisorHost() + ".");
+                hottest.migrate(slave, coolest);
+                return;
+            } catch (VirtException e) {
+                LOGGER.log(Level.WARNING, "Rebalancing " + slave.getVirtualMachineName() + " failed: " + e);
+            }
+        }
+    }
+}
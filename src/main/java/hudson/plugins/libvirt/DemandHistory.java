@@ -0,0 +1,169 @@
+package hudson.plugins.libvirt;
+
+import hudson.XmlFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Weekly profile of queue arrivals per label. Arrivals are counted in slots
+ * of {@link #BUCKET_MINUTES} minutes, and every slot of the week keeps an
+ * exponential moving average over the weeks seen so far. Together with the
+ * average estimated duration of the arriving items this gives the number
+ * of executors busy in a slot.
+ */
+public class DemandHistory {
+
+    private static final Logger LOGGER = Logger.getLogger(DemandHistory.class.getName());
+
+    static final int BUCKET_MINUTES = 15;
+    static final int BUCKETS = 7 * 24 * 60 / BUCKET_MINUTES;
+    static final long BUCKET_MS = TimeUnit.MINUTES.toMillis(BUCKET_MINUTES);
+    private static final double ALPHA = 0.3;
+    private static final String FILE_NAME = "libvirt-demand.xml";
+
+    private static DemandHistory instance;
+
+    /** Average arrivals per label (the label expression, empty for unlabeled) and slot. */
+    private final Map<String, double[]> averages = new HashMap<>();
+    /** Average estimated duration in milliseconds of the arrivals per label. */
+    private Map<String, Double> durations = new HashMap<>();
+    private int currentBucket = -1;
+    private long lastRoll;
+    private transient Map<String, Integer> current;
+
+    public static synchronized DemandHistory get() {
+        if (instance == null) {
+            instance = load(getFile());
+        }
+        return instance;
+    }
+
+    private static XmlFile getFile() {
+        return new XmlFile(Jenkins.XSTREAM2, new File(Jenkins.get().getRootDir(), FILE_NAME));
+    }
+
+    private static DemandHistory load(XmlFile file) {
+        if (file.exists()) {
+            try {
+                return (DemandHistory) file.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot read " + file + ", starting a new demand history: " + e);
+            }
+        }
+        return new DemandHistory();
+    }
+
+    private Object readResolve() {
+        if (durations == null) {
+            durations = new HashMap<>();
+        }
+        return this;
+    }
+
+    public synchronized void save() {
+        try {
+            getFile().write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot save the demand history: " + e);
+        }
+    }
+
+    /**
+     * @return the slot of the week, counted in epoch time so that daylight
+     *         saving changes do not move it
+     */
+    static int bucketOf(long time) {
+        return (int) Math.floorMod(Math.floorDiv(time, BUCKET_MS), (long) BUCKETS);
+    }
+
+    /**
+     * @param label      the label expression, empty for unlabeled items
+     * @param time       the arrival time
+     * @param durationMs the estimated duration of the item, -1 if unknown
+     */
+    public synchronized void record(String label, long time, long durationMs) {
+        roll(time);
+        current.merge(label, 1, Integer::sum);
+        if (durationMs > 0) {
+            durations.merge(label, (double) durationMs, (avg, d) -> ALPHA * d + (1 - ALPHA) * avg);
+        }
+    }
+
+    /**
+     * Folds the counts of the slot that has passed into the averages. Slots
+     * passed without a roll, e.g. while Jenkins was down, count as slots
+     * without arrivals. They are taken from the time elapsed, so a clock
+     * stepping back skips none.
+     *
+     * @param time the current time
+     * @return true if a slot has passed
+     */
+    public synchronized boolean roll(long time) {
+        if (current == null) {
+            current = new HashMap<>();
+        }
+        int bucket = bucketOf(time);
+        long elapsedSlots = Math.floorDiv(time, BUCKET_MS) - Math.floorDiv(lastRoll, BUCKET_MS);
+        lastRoll = time;
+        if (currentBucket >= 0 && elapsedSlots == 0) {
+            return false;
+        }
+        if (currentBucket >= 0) {
+            Set<String> labels = new HashSet<>(averages.keySet());
+            labels.addAll(current.keySet());
+            int skipped = (int) Math.max(0, Math.min(elapsedSlots - 1, BUCKETS - 1));
+            for (String label : labels) {
+                double[] avg = averages.computeIfAbsent(label, l -> new double[BUCKETS]);
+                fold(avg, currentBucket, current.getOrDefault(label, 0));
+                for (int i = 1; i <= skipped; i++) {
+                    fold(avg, (currentBucket + i) % BUCKETS, 0);
+                }
+            }
+        }
+        currentBucket = bucket;
+        current.clear();
+        return true;
+    }
+
+    private static void fold(double[] avg, int bucket, int count) {
+        avg[bucket] = ALPHA * count + (1 - ALPHA) * avg[bucket];
+    }
+
+    /**
+     * @param label the label expression, empty for unlabeled items
+     * @param time  the time to forecast
+     * @return the expected number of arrivals in the slot of the given time
+     */
+    public synchronized double forecast(String label, long time) {
+        double[] avg = averages.get(label);
+        return avg == null ? 0 : avg[bucketOf(time)];
+    }
+
+    /**
+     * The expected arrivals of the slot times how long each keeps an
+     * executor busy, relative to the slot. Items of unknown duration count
+     * as busy for one slot.
+     *
+     * @param label the label expression, empty for unlabeled items
+     * @param time  the time to forecast
+     * @return the expected number of busy executors in the slot of the given time
+     */
+    public synchronized double forecastExecutors(String label, long time) {
+        double duration = durations.getOrDefault(label, (double) BUCKET_MS);
+        return forecast(label, time) * duration / BUCKET_MS;
+    }
+
+    public synchronized Set<String> getLabels() {
+        return new HashSet<>(averages.keySet());
+    }
+}
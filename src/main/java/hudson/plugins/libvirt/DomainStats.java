@@ -0,0 +1,125 @@
+package hudson.plugins.libvirt;
+
+/**
+ * Recent resource counters of one domain, kept in a fixed ring of primitive
+ * arrays so that a sample costs no allocation. Filled by
+ * {@link DomainStatsCollector}, read by the management page and by build
+ * resource profiles.
+ */
+public final class DomainStats {
+
+    /** CPU time used by the domain, in nanoseconds. */
+    public static final int CPU_TIME = 0;
+    /** Memory the balloon leaves to the guest, in bytes. */
+    public static final int MEMORY = 1;
+    /** Bytes read by all disks. */
+    public static final int BLOCK_READ = 2;
+    /** Bytes written by all disks. */
+    public static final int BLOCK_WRITE = 3;
+    /** Bytes received by all interfaces. */
+    public static final int NET_RX = 4;
+    /** Bytes sent by all interfaces. */
+    public static final int NET_TX = 5;
+    static final int METRICS = 6;
+
+    /** An hour of samples at the default collection interval. */
+    static final int SAMPLES = 240;
+
+    private final long[] times = new long[SAMPLES];
+    private final long[][] values = new long[METRICS][SAMPLES];
+    private int next;
+    private int count;
+
+    /**
+     * @param time   when the sample was read, in milliseconds
+     * @param sample the counters, indexed by the metric constants
+     */
+    synchronized void record(long time, long[] sample) {
+        times[next] = time;
+        for (int metric = 0; metric < METRICS; metric++) {
+            values[metric][next] = sample[metric];
+        }
+        next = (next + 1) % SAMPLES;
+        count = Math.min(count + 1, SAMPLES);
+    }
+
+    /** @return the ring index of the i-th oldest sample */
+    private int slot(int i) {
+        return (next - count + i + SAMPLES) % SAMPLES;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return when the latest sample was read, 0 if there is none
+     */
+    public synchronized long latestTime() {
+        return count == 0 ? 0 : times[slot(count - 1)];
+    }
+
+    /**
+     * @param metric one of the metric constants
+     * @return the latest value of the metric, -1 if there is none
+     */
+    public synchronized long latest(int metric) {
+        return count == 0 ? -1 : values[metric][slot(count - 1)];
+    }
+
+    /**
+     * Averages the growth of a counter over the samples of the last window.
+     * A counter going backwards means the domain restarted, so it counts
+     * from zero.
+     *
+     * @param metric   one of the counter metrics
+     * @param windowMs how far back to look
+     * @return the growth per second, -1 if the window holds fewer than two samples
+     */
+    public synchronized double rate(int metric, long windowMs) {
+        if (count < 2) {
+            return -1;
+        }
+        long end = times[slot(count - 1)];
+        long growth = 0;
+        long from = -1;
+        for (int i = 1; i < count; i++) {
+            int prev = slot(i - 1);
+            if (times[prev] < end - windowMs) {
+                continue;
+            }
+            if (from < 0) {
+                from = times[prev];
+            }
+            int cur = slot(i);
+            long delta = values[metric][cur] - values[metric][prev];
+            growth += delta >= 0 ? delta : values[metric][cur];
+        }
+        if (from < 0 || end == from) {
+            return -1;
+        }
+        return growth * 1000.0 / (end - from);
+    }
+
+    /**
+     * Copies the samples read at or after the given time, oldest first.
+     *
+     * @param time in milliseconds
+     * @return the sample times in the first row, followed by one row per metric
+     */
+    public synchronized long[][] since(long time) {
+        int first = 0;
+        while (first < count && times[slot(first)] < time) {
+            first++;
+        }
+        long[][] copy = new long[METRICS + 1][count - first];
+        for (int i = first; i < count; i++) {
+            int s = slot(i);
+            copy[0][i - first] = times[s];
+            for (int metric = 0; metric < METRICS; metric++) {
+                copy[metric + 1][i - first] = values[metric][s];
+            }
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,66 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.slaves.Cloud;
+
+import jenkins.model.Jenkins;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Feeds the {@link DomainStatsCollector} of every hypervisor with the
+ * domains of its libvirt agents, unless turned off in the global settings.
+ */
+@Extension
+public class DomainStatsCollection extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(DomainStatsCollection.class.getName());
+    static final long INTERVAL_MS = TimeUnit.SECONDS.toMillis(15);
+
+    public DomainStatsCollection() {
+        super("Libvirt domain statistics");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return INTERVAL_MS;
+    }
+
+    @Override
+    protected Level getNormalLoggingLevel() {
+        // runs too often to log every run
+        return Level.FINEST;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        if (!LibvirtConfiguration.isCollectingDomainStats()) {
+            return;
+        }
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (!(cloud instanceof Hypervisor)) {
+                continue;
+            }
+            Hypervisor hypervisor = (Hypervisor) cloud;
+            try {
+                Map<String, IDomain> domains = new HashMap<>();
+                for (String name : hypervisor.getOnlineDomainNames()) {
+                    IDomain domain = hypervisor.getDomain(name);
+                    if (domain != null) {
+                        domains.put(name, domain);
+                    }
+                }
+                hypervisor.getStatsCollector().collect(domains);
+            } catch (VirtException e) {
+                LOGGER.log(Level.FINE, "Cannot look up the domains of " + hypervisor.getHypervisorHost() + ": " + e);
+            }
+        }
+    }}
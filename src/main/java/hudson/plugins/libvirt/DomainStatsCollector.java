@@ -0,0 +1,108 @@
+package hudson.plugins.libvirt;
+
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.plugins.libvirt.util.DomainXml;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.w3c.dom.Document;
+
+/**
+ * Collects the resource counters of the running domains of one hypervisor
+ * into a {@link DomainStats} ring per domain. Features that need to know
+ * what the domains are doing query this instead of polling libvirt on their
+ * own. The disks and interfaces to read are taken from the domain XML once
+ * per run of a domain, not on every sample.
+ */
+public class DomainStatsCollector {
+
+    private static final Logger LOGGER = Logger.getLogger(DomainStatsCollector.class.getName());
+
+    private final Map<String, DomainStats> stats = new ConcurrentHashMap<>();
+    private final Map<String, Devices> devices = new ConcurrentHashMap<>();
+    /** Reused for every read, only touched by {@link #collect}. */
+    private final long[] sample = new long[DomainStats.METRICS];
+
+    /**
+     * Reads one sample of every running domain. Rings of domains left out
+     * are dropped, those of stopped domains are kept.
+     *
+     * @param domains the domains of the agents of the hypervisor by name
+     */
+    synchronized void collect(Map<String, IDomain> domains) {
+        stats.keySet().retainAll(domains.keySet());
+        devices.keySet().retainAll(domains.keySet());
+        for (Map.Entry<String, IDomain> entry : domains.entrySet()) {
+            collect(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Reads one sample of a domain if it is running, e.g. right when a build
+     * starts or ends so that short builds are covered too.
+     *
+     * @param domainName the domain name
+     * @param domain     the domain
+     */
+    synchronized void collect(String domainName, IDomain domain) {
+        try {
+            if (!domain.isRunningOrBlocked()) {
+                return;
+            }
+            Devices current = devicesOf(domainName, domain);
+            domain.readStats(sample, current.disks, current.interfaces);
+            stats.computeIfAbsent(domainName, name -> new DomainStats()).record(System.currentTimeMillis(), sample);
+        } catch (VirtException e) {
+            // the domain may have stopped or lost a device meanwhile
+            devices.remove(domainName);
+            LOGGER.log(Level.FINE, "Cannot read the statistics of " + domainName + ": " + e);
+        }
+    }
+
+    private Devices devicesOf(String domainName, IDomain domain) throws VirtException {
+        int id = domain.getID();
+        Devices current = devices.get(domainName);
+        if (current == null || current.id != id) {
+            Document doc = DomainXml.parse(domain.getXMLDesc());
+            current = new Devices(id, DomainXml.diskTargets(doc), DomainXml.interfaceTargets(doc));
+            devices.put(domainName, current);
+        }
+        return current;
+    }
+
+    /**
+     * Makes the next sample of a domain read its devices again, after a
+     * disk was plugged into the running domain.
+     *
+     * @param domainName the domain
+     */
+    void forgetDevices(String domainName) {
+        devices.remove(domainName);
+    }
+
+    /**
+     * @param domainName the domain
+     * @return the recent samples of the domain, null if it has not been seen running
+     */
+    public DomainStats get(String domainName) {
+        return stats.get(domainName);
+    }
+
+    /** The devices of one run of a domain. */
+    private static final class Devices {
+        private final int id;
+        private final List<String> disks;
+        private final List<String> interfaces;
+
+        Devices(int id, List<String> disks, List<String> interfaces) {
+            this.id = id;
+            this.disks = disks;
+            this.interfaces = interfaces;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.slaves.RetentionStrategy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Launches an ephemeral agent once and terminates it as soon as it is
+ * offline again, whether the launch failed or the domain went away after
+ * its build. Unlike {@link RetentionStrategy.Always} it never relaunches.
+ * An agent left idle, e.g. because the item it was provisioned for was
+ * cancelled or went elsewhere, is terminated after {@link #getIdleMinutes()}.
+ */
+public class EphemeralRetentionStrategy extends RetentionStrategy<VirtualMachineSlaveComputer> {
+
+    private static final Logger LOGGER = Logger.getLogger(EphemeralRetentionStrategy.class.getName());
+
+    static final int DEFAULT_IDLE_MINUTES = 10;
+
+    private final int idleMinutes;
+    private transient volatile boolean launched;
+
+    @DataBoundConstructor
+    public EphemeralRetentionStrategy(int idleMinutes) {
+        this.idleMinutes = idleMinutes;
+    }
+
+    /**
+     * @return minutes an online agent may stay idle, the default if not set
+     */
+    public int getIdleMinutes() {
+        return idleMinutes > 0 ? idleMinutes : DEFAULT_IDLE_MINUTES;
+    }
+
+    /**
+     * @param idleStart when the agent became idle, in milliseconds
+     * @param now       the current time in milliseconds
+     * @param minutes   the idle timeout
+     * @return true if the agent has been idle for longer than the timeout
+     */
+    static boolean idleTooLong(long idleStart, long now, int minutes) {
+        return now - idleStart > TimeUnit.MINUTES.toMillis(minutes);
+    }
+
+    @Override
+    public long check(VirtualMachineSlaveComputer c) {
+        Node node = c.getNode();
+        if (!(node instanceof EphemeralVirtualMachineSlave) || c.isConnecting()) {
+            return 1;
+        }
+        if (c.getChannel() == null) {
+            if (launched) {
+                LOGGER.log(Level.INFO, "Ephemeral agent " + node.getNodeName() + " is offline, terminating it.");
+                ((EphemeralVirtualMachineSlave) node).terminate();
+            } else {
+                start(c);
+            }
+        } else if (c.isIdle() && idleTooLong(c.getIdleStartMilliseconds(), System.currentTimeMillis(), getIdleMinutes())) {
+            LOGGER.log(Level.INFO, "Ephemeral agent " + node.getNodeName() + " was idle for " + getIdleMinutes()
+                                   + " minutes, terminating it.");
+            ((EphemeralVirtualMachineSlave) node).terminate();
+        }
+        return 1;
+    }
+
+    @Override
+    public void start(VirtualMachineSlaveComputer c) {
+        launched = true;
+        c.connect(false);
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+
+        @Override
+        public String getDisplayName() {
+            return "Launch once, then terminate (ephemeral libvirt agents)";
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.ComputerLauncher;
+
+import java.util.Set;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Describes how ephemeral agents are cloned from a golden base image: every
+ * agent gets a transient domain defined by {@link #getDomainXml()} whose
+ * writable disk is a fresh copy-on-write overlay on top of the base image.
+ * The domain and its overlay only live for a single build.
+ */
+public class EphemeralTemplate extends AbstractDescribableImpl<EphemeralTemplate> {
+
+    private final String name;
+    private final String labelString;
+    private final String domainXml;
+    private final String baseImagePath;
+    private final String storagePool;
+    private final String remoteFS;
+    private final int numExecutors;
+    private final int instanceCap;
+    private final int spareOverlays;
+    private final int startupWaitingPeriodSeconds;
+    private final int startupTimesToRetryOnFailure;
+    private final ComputerLauncher launcher;
+
+    @DataBoundConstructor
+    public EphemeralTemplate(String name, String labelString, String domainXml,
+                             String baseImagePath, String storagePool, String remoteFS,
+                             int numExecutors, int instanceCap, int spareOverlays,
+                             int startupWaitingPeriodSeconds, int startupTimesToRetryOnFailure,
+                             ComputerLauncher launcher) {
+        this.name = name;
+        this.labelString = Util.fixNull(labelString);
+        this.domainXml = domainXml;
+        this.baseImagePath = baseImagePath;
+        this.storagePool = storagePool;
+        this.remoteFS = remoteFS;
+        this.numExecutors = numExecutors > 0 ? numExecutors : 1;
+        this.instanceCap = instanceCap;
+        this.spareOverlays = spareOverlays;
+        this.startupWaitingPeriodSeconds = startupWaitingPeriodSeconds;
+        this.startupTimesToRetryOnFailure = startupTimesToRetryOnFailure;
+        this.launcher = launcher;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLabelString() {
+        return labelString;
+    }
+
+    public String getDomainXml() {
+        return domainXml;
+    }
+
+    public String getBaseImagePath() {
+        return baseImagePath;
+    }
+
+    public String getStoragePool() {
+        return storagePool;
+    }
+
+    public String getRemoteFS() {
+        return remoteFS;
+    }
+
+    public int getNumExecutors() {
+        return numExecutors;
+    }
+
+    public int getInstanceCap() {
+        return instanceCap;
+    }
+
+    public int getSpareOverlays() {
+        return spareOverlays;
+    }
+
+    public int getStartupWaitingPeriodSeconds() {
+        return startupWaitingPeriodSeconds;
+    }
+
+    public int getStartupTimesToRetryOnFailure() {
+        return startupTimesToRetryOnFailure;
+    }
+
+    public ComputerLauncher getLauncher() {
+        return launcher;
+    }
+
+    public Set<LabelAtom> getLabelSet() {
+        return Label.parse(labelString);
+    }
+
+    /**
+     * Unlabeled work only goes to templates without labels, just like it
+     * would only go to nodes in exclusive mode otherwise.
+     *
+     * @param label the label requested by the queue, may be null
+     * @return true if agents of this template can run the work
+     */
+    public boolean matches(Label label) {
+        if (label == null) {
+            return labelString.trim().isEmpty();
+        }
+        return label.matches(getLabelSet());
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<EphemeralTemplate> {
+
+        @Override
+        public String getDisplayName() {
+            return "Ephemeral agent template";
+        }
+    }
+}
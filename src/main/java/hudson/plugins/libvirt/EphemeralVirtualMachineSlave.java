@@ -0,0 +1,126 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.slaves.Cloud;
+import hudson.slaves.EphemeralNode;
+import hudson.slaves.OfflineCause;
+
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An agent backed by a transient domain cloned from an {@link EphemeralTemplate}.
+ * It runs a single build, after which the domain is destroyed, its overlay
+ * deleted and the node removed.
+ */
+public class EphemeralVirtualMachineSlave extends VirtualMachineSlave implements EphemeralNode {
+
+    static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = Logger.getLogger(EphemeralVirtualMachineSlave.class.getName());
+
+    private final String templateName;
+    private final String overlayPath;
+    private transient boolean terminating;
+
+    public EphemeralVirtualMachineSlave(String name, EphemeralTemplate template, Hypervisor hypervisor,
+                                        String overlayPath)
+            throws Descriptor.FormException, IOException {
+        super(name, "Ephemeral agent from template " + template.getName(), template.getRemoteFS(),
+              String.valueOf(template.getNumExecutors()),
+              template.getLabelString().trim().isEmpty() ? Mode.NORMAL : Mode.EXCLUSIVE,
+              template.getLabelString(), null, template.getLauncher(), new EphemeralRetentionStrategy(EphemeralRetentionStrategy.DEFAULT_IDLE_MINUTES),
+              Collections.emptyList(), hypervisor.getHypervisorDescription(), name, "",
+              template.getStartupWaitingPeriodSeconds(), "destroy", false,
+              template.getStartupTimesToRetryOnFailure(), "");
+        this.templateName = template.getName();
+        this.overlayPath = overlayPath;
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public String getOverlayPath() {
+        return overlayPath;
+    }
+
+    @Override
+    public Node asNode() {
+        return this;
+    }
+
+    /**
+     * Tears the agent down in the background: disconnecting destroys the
+     * transient domain, then the overlay is deleted and the node removed.
+     * Only the first call does anything.
+     */
+    public void terminate() {
+        synchronized (this) {
+            if (terminating) {
+                return;
+            }
+            terminating = true;
+        }
+        final Computer computer = toComputer();
+        if (computer != null) {
+            computer.setAcceptingTasks(false);
+        }
+        Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                if (computer != null) {
+                    computer.disconnect(new OfflineCause.ByCLI("Ephemeral agent " + getNodeName() + " is done.")).get();
+                }
+                ((VirtualMachineLauncher) getLauncher()).findOurHypervisorInstance().deleteVolume(overlayPath);
+            } catch (VirtException | ExecutionException e) {
+                LOGGER.log(Level.WARNING, "Cleaning up ephemeral agent " + getNodeName() + " failed: " + e);
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Interrupted while cleaning up ephemeral agent " + getNodeName());
+            }
+            try {
+                Jenkins.get().removeNode(this);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Removing ephemeral agent " + getNodeName() + " failed: " + e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Cleans up after ephemeral agents that were running when the
+     * controller stopped.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void sweepOrphans() {
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (cloud instanceof Hypervisor && !((Hypervisor) cloud).getTemplates().isEmpty()) {
+                Hypervisor hypervisor = (Hypervisor) cloud;
+                hypervisor.getExecutor().submit(hypervisor::sweepEphemeral);
+            }
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends SlaveDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Ephemeral agent cloned from a libvirt template";
+        }
+
+        @Override
+        public boolean isInstantiable() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package hudson.plugins.libvirt;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Refreshes the golden image of a fleet of libvirt agents: every agent in
+ * turn stops taking tasks, is booted from its current snapshot, provisioned
+ * by a script and snapshotted again. The hypervisors are rolled one after
+ * the other, so the fleet keeps serving builds. Only once every agent has
+ * the new snapshot are they all switched to it together; the first failure
+ * stops the roll, deletes the staged snapshots and leaves the fleet on its
+ * current ones. The build must not run on an agent of the fleet.
+ */
+public class GoldenImageRefreshBuilder extends Builder {
+
+    private static final long POLL_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private final String fleetLabel;
+    private final String snapshotPrefix;
+    private final String provisionScript;
+
+    @DataBoundConstructor
+    public GoldenImageRefreshBuilder(String fleetLabel, String snapshotPrefix, String provisionScript) {
+        this.fleetLabel = fleetLabel;
+        this.snapshotPrefix = snapshotPrefix;
+        this.provisionScript = provisionScript;
+    }
+
+    public String getFleetLabel() {
+        return fleetLabel;
+    }
+
+    public String getSnapshotPrefix() {
+        return snapshotPrefix;
+    }
+
+    public String getProvisionScript() {
+        return provisionScript;
+    }
+
+    /**
+     * @return the persistent libvirt agents of the fleet, grouped by hypervisor
+     */
+    private Map<String, List<VirtualMachineSlave>> fleetByHypervisor() {
+        Label label = Jenkins.get().getLabel(fleetLabel);
+        Map<String, List<VirtualMachineSlave>> fleet = new TreeMap<>();
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof VirtualMachineSlave && !(node instanceof EphemeralVirtualMachineSlave)
+                && label != null && label.contains(node)) {
+                VirtualMachineSlave slave = (VirtualMachineSlave) node;
+                fleet.computeIfAbsent(slave.getHypervisorDescription(), h -> new ArrayList<>()).add(slave);
+            }
+        }
+        return fleet;
+    }
+
+    @Override
+    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+            throws InterruptedException, IOException {
+        String snapshot = Util.fixEmptyAndTrim(snapshotPrefix) == null ? "golden" : snapshotPrefix.trim();
+        snapshot += "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+
+        Map<String, List<VirtualMachineSlave>> fleet = fleetByHypervisor();
+        if (fleet.isEmpty()) {
+            throw new AbortException("No libvirt agents match " + fleetLabel);
+        }
+        Node buildNode = build.getBuiltOn();
+        for (List<VirtualMachineSlave> slaves : fleet.values()) {
+            if (buildNode != null && slaves.contains(buildNode)) {
+                // the refresh would wait for its own build to finish
+                throw new AbortException("Cannot refresh " + fleetLabel + " from " + buildNode.getNodeName()
+                                         + ", which is part of the fleet; run the build elsewhere");
+            }
+        }
+
+        // stage the new snapshot on every agent first, then switch them all at once
+        List<VirtualMachineSlave> staged = new ArrayList<>();
+        try {
+            for (Map.Entry<String, List<VirtualMachineSlave>> host : fleet.entrySet()) {
+                listener.getLogger().println("Refreshing " + host.getValue().size() + " agents on " + host.getKey() + ".");
+                for (VirtualMachineSlave slave : host.getValue()) {
+                    refresh(slave, snapshot, listener);
+                    staged.add(slave);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            listener.getLogger().println("Refresh failed, the fleet stays on its current snapshots.");
+            for (VirtualMachineSlave slave : staged) {
+                discard(slave, snapshot, listener);
+            }
+            throw e;
+        }
+        for (VirtualMachineSlave slave : staged) {
+            slave.setSnapshotName(snapshot);
+        }
+        for (VirtualMachineSlave slave : staged) {
+            Jenkins.get().updateNode(slave);
+        }
+        listener.getLogger().println("Fleet " + fleetLabel + " switched to snapshot " + snapshot + ".");
+        return true;
+    }
+
+    /**
+     * Boots an agent from its current snapshot, provisions it and takes the
+     * new snapshot, without switching the agent to it yet.
+     */
+    private void refresh(VirtualMachineSlave slave, String snapshot, BuildListener listener)
+            throws InterruptedException, IOException {
+        Computer computer = slave.toComputer();
+        if (!(computer instanceof VirtualMachineSlaveComputer)) {
+            throw new AbortException(slave.getNodeName() + " has no computer");
+        }
+        VirtualMachineSlaveComputer c = (VirtualMachineSlaveComputer) computer;
+        String previous = slave.getSnapshotName();
+        listener.getLogger().println("Taking " + slave.getNodeName() + " out of service.");
+        // temporarily offline would make the agent count as offline and keep it from connecting
+        c.setAcceptingTasks(false);
+        try {
+            while (!c.isIdle()) {
+                Thread.sleep(POLL_MS);
+            }
+            // a task finishing meanwhile may have opened the agent again
+            c.setAcceptingTasks(false);
+            if (c.getChannel() == null) {
+                c.connect(false).get();
+            }
+            if (previous != null && !previous.isEmpty() && c.getChannel() != null) {
+                c.revertInBuild(previous, listener);
+            }
+            if (c.getChannel() == null) {
+                throw new AbortException(slave.getNodeName() + " did not come online");
+            }
+
+            listener.getLogger().println("Provisioning " + slave.getNodeName() + ".");
+            Launcher agent = slave.createLauncher(listener);
+            String[] cmds = Boolean.TRUE.equals(c.isUnix())
+                    ? new String[]{"sh", "-xe", "-c", provisionScript}
+                    : new String[]{"cmd", "/c", provisionScript};
+            int exit = agent.launch().cmds(cmds).stdout(listener).pwd(slave.getRemoteFS()).join();
+            if (exit != 0) {
+                throw new AbortException("Provisioning " + slave.getNodeName() + " failed with exit code " + exit);
+            }
+
+            listener.getLogger().println("Taking snapshot " + snapshot + " of " + slave.getNodeName() + ".");
+            c.takeSnapshot(snapshot, "Golden image refreshed by " + fleetLabel);
+        } catch (ExecutionException | VirtException e) {
+            throw new IOException("Refreshing " + slave.getNodeName() + " failed", e);
+        } finally {
+            c.setAcceptingTasks(true);
+        }
+    }
+
+    /**
+     * Deletes a staged snapshot after the refresh of the fleet failed.
+     */
+    private static void discard(VirtualMachineSlave slave, String snapshot, BuildListener listener) {
+        Computer computer = slave.toComputer();
+        if (!(computer instanceof VirtualMachineSlaveComputer)) {
+            return;
+        }
+        try {
+            ((VirtualMachineSlaveComputer) computer).deleteSnapshot(snapshot);
+        } catch (VirtException e) {
+            listener.getLogger().println("Cannot delete snapshot " + snapshot + " of " + slave.getNodeName() + ": " + e.getMessage());
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Refresh libvirt golden image";
+        }
+    }
+}
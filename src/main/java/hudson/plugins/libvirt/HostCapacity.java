@@ -0,0 +1,105 @@
+package hudson.plugins.libvirt;
+
+import hudson.plugins.libvirt.lib.IConnect;
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Point-in-time view of the memory and CPUs of a hypervisor host and of what
+ * its running domains are configured to use, to decide whether one more
+ * domain fits within the allowed overcommit. Running domains count with the
+ * memory their balloon currently leaves them, so that idle agents shrunk by
+ * {@link BalloonReclaim} make room for more. Paused domains keep their memory
+ * and count as running.
+ */
+final class HostCapacity {
+
+    private final long nodeMemory;
+    private final int cpus;
+    private long committedMemory;
+    private int committedVcpus;
+    /** Current or configured memory, vCPUs and 1 if running, per domain name. */
+    private final Map<String, long[]> domains = new HashMap<>();
+    private final long readAt;
+
+    HostCapacity(long nodeMemory, int cpus, long readAt) {
+        this.nodeMemory = nodeMemory;
+        this.cpus = cpus;
+        this.readAt = readAt;
+    }
+
+    static HostCapacity read(IConnect connection, Map<String, IDomain> domains) throws VirtException {
+        HostCapacity capacity = new HostCapacity(connection.getNodeMemory(), connection.getNodeCpus(),
+                                                 System.currentTimeMillis());
+        for (IDomain domain : domains.values()) {
+            boolean running = domain.isRunningOrBlocked() || domain.isPaused();
+            capacity.addDomain(domain.getName(), running ? domain.getMemory() : domain.getMaxMemory(),
+                               domain.getVcpuCount(), running);
+        }
+        return capacity;
+    }
+
+    void addDomain(String name, long memory, int vcpus, boolean running) {
+        domains.put(name, new long[]{memory, vcpus, running ? 1 : 0});
+        if (running) {
+            committedMemory += memory;
+            committedVcpus += vcpus;
+        }
+    }
+
+    long getReadAt() {
+        return readAt;
+    }
+
+    /**
+     * @return memory left before the configured memory of the running domains reaches the host memory
+     */
+    long getMemoryHeadroom() {
+        return nodeMemory - committedMemory;
+    }
+
+    /**
+     * @return the memory of the running domains as a share of the host memory, in percent
+     */
+    int getMemoryLoadPercent() {
+        return nodeMemory <= 0 ? 0 : (int) (committedMemory * 100 / nodeMemory);
+    }
+
+    /**
+     * @param name          the domain to start
+     * @param memoryRatio   how far the configured memory of the running domains may exceed the host memory
+     * @param cpuRatio      how many vCPUs may run per host CPU
+     * @return null if the domain fits, otherwise why not
+     */
+    String refuse(String name, double memoryRatio, double cpuRatio) {
+        long[] wanted = domains.get(name);
+        if (wanted == null || wanted[2] == 1) {
+            // unknown domains are refused by libvirt itself, running ones are accounted for already
+            return null;
+        }
+        if (committedMemory + wanted[0] > nodeMemory * memoryRatio) {
+            return "memory overcommit of " + memoryRatio + " reached";
+        }
+        if (committedVcpus + wanted[1] > cpus * cpuRatio) {
+            return "CPU overcommit of " + cpuRatio + " reached";
+        }
+        return null;
+    }
+
+    /**
+     * Accounts for a domain that is being started, until the next read.
+     *
+     * @param name the domain
+     */
+    void commit(String name) {
+        long[] wanted = domains.get(name);
+        if (wanted != null && wanted[2] == 0) {
+            committedMemory += wanted[0];
+            committedVcpus += (int) wanted[1];
+            wanted[2] = 1;
+        }
+    }
+}
@@ -32,10 +32,12 @@ import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 import com.google.common.base.Strings;
 import com.trilead.ssh2.Connection;
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Item;
 import hudson.model.Label;
+import hudson.model.Node;
 import hudson.model.Queue;
 import hudson.model.queue.Tasks;
 import hudson.plugins.libvirt.lib.ConnectionBuilder;
@@ -43,21 +45,34 @@ import hudson.plugins.libvirt.lib.IConnect;
 import hudson.plugins.libvirt.lib.IDomain;
 import hudson.plugins.libvirt.lib.VirtException;
 import static hudson.plugins.libvirt.util.Consts.SSH_PORT;
+import hudson.plugins.libvirt.util.VolumeXml;
 import hudson.security.ACL;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 
@@ -69,6 +84,7 @@ import org.apache.commons.lang.StringUtils;
 
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.verb.POST;
@@ -79,6 +95,13 @@ import org.kohsuke.stapler.verb.POST;
 public class Hypervisor extends Cloud {
 
     private static final Logger LOGGER = Logger.getLogger(Hypervisor.class.getName());
+    private static final int EXECUTOR_THREADS = 16;
+    private static final long SNAPSHOT_CACHE_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int DEFAULT_SNAPSHOT_RETENTION_DAYS = 30;
+    private static final double DEFAULT_MEMORY_OVERCOMMIT = 1.0;
+    private static final double DEFAULT_CPU_OVERCOMMIT = 4.0;
+    private static final int DEFAULT_BALLOON_PERCENT = 25;
+    private static final long HOST_CAPACITY_TTL_MS = TimeUnit.SECONDS.toMillis(30);
 
     private final String hypervisorType;
     private final String hypervisorHost;
@@ -90,6 +113,27 @@ public class Hypervisor extends Cloud {
     private transient ConcurrentHashMap<String, String> currentOnline;
     private transient IConnect connection;
     private final String credentialsId;
+    private List<EphemeralTemplate> templates;
+    private transient ConcurrentHashMap<String, OverlayPool> overlayPools;
+    private transient ExecutorService executor;
+    private int maxConcurrentBoots;
+    private transient Semaphore bootSlots;
+    private transient AtomicInteger bootsInFlight;
+    private transient ConcurrentHashMap<String, CachedSnapshots> snapshotCache;
+    private transient Set<String> snapshotsFetching;
+    private String snapshotHousekeeping;
+    private Integer snapshotRetentionDays;
+    private transient volatile Map<String, List<String>> staleSnapshots;
+    private boolean liveCapacity;
+    private Double memoryOvercommit;
+    private Double cpuOvercommit;
+    private transient HostCapacity hostCapacity;
+    private transient volatile boolean draining;
+    private boolean numaPinning;
+    private int balloonIdleMinutes;
+    private Integer balloonPercent;
+    private transient NumaPlacement numaPlacement;
+    private transient DomainStatsCollector statsCollector;
 
     @DataBoundConstructor
     public Hypervisor(String hypervisorType, String hypervisorHost,
@@ -120,6 +164,32 @@ public class Hypervisor extends Cloud {
         if (currentOnline == null) {
             currentOnline = new ConcurrentHashMap<>();
         }
+        if (overlayPools == null) {
+            overlayPools = new ConcurrentHashMap<>();
+        }
+        if (snapshotCache == null) {
+            snapshotCache = new ConcurrentHashMap<>();
+        }
+        if (snapshotsFetching == null) {
+            snapshotsFetching = ConcurrentHashMap.newKeySet();
+        }
+    }
+
+    /**
+     * Returns the executor that runs slow operations on the domains of this
+     * hypervisor, like stopping them, off the threads of the callers.
+     *
+     * @return the executor
+     */
+    public synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(EXECUTOR_THREADS, EXECUTOR_THREADS,
+                    60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Libvirt " + hypervisorHost));
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
     }
 
     private ConnectionBuilder createBuilder() {
@@ -209,10 +279,326 @@ public class Hypervisor extends Cloud {
         return maxOnlineSlaves;
     }
 
+    public List<EphemeralTemplate> getTemplates() {
+        if (templates == null) {
+            return Collections.emptyList();
+        }
+        return templates;
+    }
+
+    @DataBoundSetter
+    public void setTemplates(List<EphemeralTemplate> templates) {
+        this.templates = templates;
+    }
+
+    public int getMaxConcurrentBoots() {
+        return maxConcurrentBoots;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentBoots(int maxConcurrentBoots) {
+        this.maxConcurrentBoots = maxConcurrentBoots;
+    }
+
+    /**
+     * @return "off", "report" or "delete"
+     */
+    public String getSnapshotHousekeeping() {
+        return snapshotHousekeeping == null ? "off" : snapshotHousekeeping;
+    }
+
+    @DataBoundSetter
+    public void setSnapshotHousekeeping(String snapshotHousekeeping) {
+        this.snapshotHousekeeping = snapshotHousekeeping;
+    }
+
+    public int getSnapshotRetentionDays() {
+        return snapshotRetentionDays == null ? DEFAULT_SNAPSHOT_RETENTION_DAYS : snapshotRetentionDays;
+    }
+
+    @DataBoundSetter
+    public void setSnapshotRetentionDays(int snapshotRetentionDays) {
+        this.snapshotRetentionDays = snapshotRetentionDays;
+    }
+
+    /**
+     * @param virtualMachineName the name of the domain
+     * @return the snapshots the last housekeeping run found unreferenced and
+     *         past retention, empty if none or not inventoried yet
+     */
+    public List<String> getStaleSnapshots(String virtualMachineName) {
+        Map<String, List<String>> stale = staleSnapshots;
+        if (stale == null || !stale.containsKey(virtualMachineName)) {
+            return Collections.emptyList();
+        }
+        return stale.get(virtualMachineName);
+    }
+
+    void setStaleSnapshots(Map<String, List<String>> staleSnapshots) {
+        this.staleSnapshots = staleSnapshots;
+    }
+
+    public boolean getLiveCapacity() {
+        return liveCapacity;
+    }
+
+    @DataBoundSetter
+    public void setLiveCapacity(boolean liveCapacity) {
+        this.liveCapacity = liveCapacity;
+    }
+
+    public double getMemoryOvercommit() {
+        return memoryOvercommit == null ? DEFAULT_MEMORY_OVERCOMMIT : memoryOvercommit;
+    }
+
+    @DataBoundSetter
+    public void setMemoryOvercommit(double memoryOvercommit) {
+        this.memoryOvercommit = memoryOvercommit;
+    }
+
+    public double getCpuOvercommit() {
+        return cpuOvercommit == null ? DEFAULT_CPU_OVERCOMMIT : cpuOvercommit;
+    }
+
+    @DataBoundSetter
+    public void setCpuOvercommit(double cpuOvercommit) {
+        this.cpuOvercommit = cpuOvercommit;
+    }
+
+    /**
+     * @return minutes an online agent must be idle before its balloon is inflated, 0 to never
+     */
+    public int getBalloonIdleMinutes() {
+        return balloonIdleMinutes;
+    }
+
+    @DataBoundSetter
+    public void setBalloonIdleMinutes(int balloonIdleMinutes) {
+        this.balloonIdleMinutes = Math.max(0, balloonIdleMinutes);
+    }
+
+    /**
+     * @return percentage of its maximum memory an idle agent keeps
+     */
+    public int getBalloonPercent() {
+        return balloonPercent == null ? DEFAULT_BALLOON_PERCENT : balloonPercent;
+    }
+
+    @DataBoundSetter
+    public void setBalloonPercent(int balloonPercent) {
+        this.balloonPercent = Math.min(100, Math.max(1, balloonPercent));
+    }
+
+    public boolean getNumaPinning() {
+        return numaPinning;
+    }
+
+    @DataBoundSetter
+    public void setNumaPinning(boolean numaPinning) {
+        this.numaPinning = numaPinning;
+    }
+
+    /**
+     * @return the NUMA placement of this host, read from its capabilities on
+     *         first use, or null if pinning is off
+     * @throws VirtException if the capabilities cannot be read
+     */
+    public synchronized NumaPlacement getNumaPlacement() throws VirtException {
+        if (!numaPinning) {
+            return null;
+        }
+        if (numaPlacement == null) {
+            numaPlacement = new NumaPlacement(requireConnection().getCapabilities());
+        }
+        return numaPlacement;
+    }
+
+    /**
+     * @return the current pins per domain, empty if pinning is off or unknown
+     */
+    public Map<String, NumaPlacement.Placement> getNumaPlacements() {
+        NumaPlacement placement = numaPlacement;
+        return placement == null ? Collections.<String, NumaPlacement.Placement>emptyMap() : placement.getPlacements();
+    }
+
+    /**
+     * @return the recent resource counters of the domains of this host
+     */
+    public synchronized DomainStatsCollector getStatsCollector() {
+        if (statsCollector == null) {
+            statsCollector = new DomainStatsCollector();
+        }
+        return statsCollector;
+    }
+
+    /**
+     * Reads the host capacity again once it is older than
+     * {@link #HOST_CAPACITY_TTL_MS}. The libvirt calls of the read are made
+     * without holding this hypervisor, agents marked online meanwhile are
+     * accounted for when the new figures are stored.
+     *
+     * @return the host capacity
+     */
+    private HostCapacity getHostCapacity() throws VirtException {
+        synchronized (this) {
+            if (hostCapacity != null && System.currentTimeMillis() - hostCapacity.getReadAt() <= HOST_CAPACITY_TTL_MS) {
+                return hostCapacity;
+            }
+        }
+        HostCapacity capacity = HostCapacity.read(requireConnection(), getDomains());
+        synchronized (this) {
+            ensureLists();
+            for (String vmName : currentOnline.values()) {
+                capacity.commit(vmName);
+            }
+            hostCapacity = capacity;
+        }
+        return capacity;
+    }
+
+    /**
+     * @return memory in bytes not yet promised to running domains, 0 if unknown
+     */
+    public long getMemoryHeadroom() {
+        try {
+            return Math.max(0, getHostCapacity().getMemoryHeadroom());
+        } catch (VirtException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return true while running domains are moved off this hypervisor, no
+     *         agents are placed on it meanwhile
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public void setDraining(boolean draining) {
+        this.draining = draining;
+    }
+
+    /**
+     * Live-migrates the domain of an agent to another hypervisor and moves
+     * the bookkeeping of the agent along, keeping its channel up.
+     *
+     * @param slave  the agent whose domain runs here
+     * @param target the hypervisor to move it to
+     * @throws VirtException if the migration failed, the domain then still runs here
+     */
+    public void migrate(VirtualMachineSlave slave, Hypervisor target) throws VirtException {
+        String vmName = slave.getVirtualMachineName();
+        IDomain domain = requireConnection().domainLookupByName(vmName);
+        checkMigratable(vmName, domain);
+        LOGGER.log(Level.INFO, "Migrating " + vmName + " from " + hypervisorHost + " to " + target.getHypervisorHost() + ".");
+        // both members keep the definition, the target gets ours so that they match
+        target.defineDomain(domain.getInactiveXMLDesc());
+        long start = System.currentTimeMillis();
+        domain.migrateLive(target.requireConnection());
+        LOGGER.log(Level.INFO, "Migrated " + vmName + " in " + (System.currentTimeMillis() - start) + " ms.");
+
+        markVMOffline(slave.getNodeName(), vmName);
+        target.adoptVM(slave.getNodeName(), vmName);
+        ((VirtualMachineLauncher) slave.getLauncher()).setActiveHypervisor(target);
+        synchronized (this) {
+            hostCapacity = null;
+        }
+    }
+
+    /**
+     * @param vmName the domain name
+     * @param domain the domain
+     * @throws VirtException if libvirt would refuse to migrate the domain:
+     *                       it does not move snapshot metadata along
+     */
+    static void checkMigratable(String vmName, IDomain domain) throws VirtException {
+        int snapshots = domain.snapshotNum();
+        if (snapshots > 0) {
+            throw new VirtException(vmName + " has " + snapshots + " snapshots, libvirt cannot migrate it");
+        }
+    }
+
+    /**
+     * @return the share of the host memory the running domains use, in percent, 0 if unknown
+     */
+    public int getMemoryLoadPercent() {
+        try {
+            return getHostCapacity().getMemoryLoadPercent();
+        } catch (VirtException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Records a domain that arrived running by migration, beyond any limit.
+     */
+    synchronized void adoptVM(String slaveName, String vmName) {
+        ensureLists();
+        if (currentOnline.put(slaveName, vmName) == null) {
+            currentOnlineSlaveCount++;
+        }
+        hostCapacity = null;
+    }
+
+    private synchronized Semaphore getBootSlots() {
+        if (bootSlots == null) {
+            bootSlots = new Semaphore(maxConcurrentBoots > 0 ? maxConcurrentBoots : Integer.MAX_VALUE, true);
+            bootsInFlight = new AtomicInteger();
+        }
+        return bootSlots;
+    }
+
+    /**
+     * Waits until fewer than {@link #getMaxConcurrentBoots()} domains are
+     * booting on this hypervisor, so that boot storms do not slow every
+     * guest down. Every call has to be paired with {@link #finishBoot()}.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void startBoot() throws InterruptedException {
+        getBootSlots().acquire();
+        bootsInFlight.incrementAndGet();
+    }
+
+    public void finishBoot() {
+        bootsInFlight.decrementAndGet();
+        getBootSlots().release();
+    }
+
+    public int getBootsInFlight() {
+        getBootSlots();
+        return bootsInFlight.get();
+    }
+
+    /**
+     * @return true if another boot would not have to wait
+     */
+    public boolean hasBootCapacity() {
+        return getBootSlots().availablePermits() > 0;
+    }
+
+    public EphemeralTemplate getTemplate(Label label) {
+        for (EphemeralTemplate template : getTemplates()) {
+            if (template.matches(label)) {
+                return template;
+            }
+        }
+        return null;
+    }
+
     public synchronized int getCurrentOnlineSlaveCount() {
         return currentOnlineSlaveCount;
     }
 
+    /**
+     * @return the domains of the agents currently marked online here
+     */
+    synchronized Set<String> getOnlineDomainNames() {
+        ensureLists();
+        return new HashSet<>(currentOnline.values());
+    }
+
     public String getHypervisorDescription() {
         return getHypervisorType() + " - " + getHypervisorHost();
     }
@@ -264,6 +650,22 @@ public class Hypervisor extends Cloud {
         return domains;
     }
 
+    /**
+     * Looks a single domain up by its name, without listing all domains of
+     * the hypervisor like {@link #getDomains()} does.
+     *
+     * @param name the domain name
+     * @return the domain, null if there is no connection or no such domain
+     * @throws VirtException if the lookup fails
+     */
+    public synchronized IDomain getDomain(String name) throws VirtException {
+        IConnect con = getOrCreateConnection();
+        if (con == null) {
+            return null;
+        }
+        return con.findDomain(name);
+    }
+
     /**
      * Returns a <code>List</code> of VMs configured on the hypervisor. This
      * method always retrieves the current list of VMs to ensure that newly
@@ -318,14 +720,247 @@ public class Hypervisor extends Cloud {
         return new String[0];
     }
 
+    /**
+     * Same as {@link #getSnapshots(String)}, but answered from a short-lived
+     * cache without ever waiting for libvirt, for callers on hot paths like
+     * the queue maintenance. A missing or expired entry is fetched in the
+     * background.
+     *
+     * @param virtualMachineName the name of the domain
+     * @return the names of its snapshots as last fetched, null if not fetched yet
+     */
+    public String[] getCachedSnapshots(String virtualMachineName) {
+        ensureLists();
+        CachedSnapshots cached = snapshotCache.get(virtualMachineName);
+        if ((cached == null || System.currentTimeMillis() - cached.fetched > SNAPSHOT_CACHE_MS)
+            && snapshotsFetching.add(virtualMachineName)) {
+            getExecutor().submit(() -> {
+                try {
+                    String[] names = getSnapshots(virtualMachineName);
+                    snapshotCache.put(virtualMachineName, new CachedSnapshots(names, System.currentTimeMillis()));
+                } finally {
+                    snapshotsFetching.remove(virtualMachineName);
+                }
+            });
+        }
+        return cached == null ? null : cached.names;
+    }
+
+    private static final class CachedSnapshots {
+        private final String[] names;
+        private final long fetched;
+
+        private CachedSnapshots(String[] names, long fetched) {
+            this.names = names;
+            this.fetched = fetched;
+        }
+    }
+
+    private IConnect requireConnection() throws VirtException {
+        IConnect con = getOrCreateConnection();
+        if (con == null) {
+            throw new VirtException("Cannot connect to Hypervisor " + hypervisorHost + " as " + username);
+        }
+        return con;
+    }
+
+    /**
+     * Starts a domain that only exists as long as it runs.
+     *
+     * @param xmlDesc the domain description
+     * @return the running domain
+     * @throws VirtException if the domain cannot be started
+     */
+    public synchronized IDomain createTransientDomain(String xmlDesc) throws VirtException {
+        return requireConnection().domainCreateXML(xmlDesc);
+    }
+
+    /**
+     * Creates an empty copy-on-write overlay on top of a base image.
+     *
+     * @param poolName the storage pool the overlay is created in
+     * @param name     the volume name of the overlay
+     * @param basePath the path of the base image
+     * @return the path of the new overlay
+     * @throws VirtException if the volume cannot be created
+     */
+    public synchronized String createOverlay(String poolName, String name, String basePath) throws VirtException {
+        IConnect con = requireConnection();
+        long capacity = con.storageVolCapacity(basePath);
+        return con.storageVolCreateXML(poolName, VolumeXml.qcow2Overlay(name, basePath, capacity));
+    }
+
+    /**
+     * @return the path of the named volume in the pool, null if there is none
+     * @throws VirtException if the pool cannot be read
+     */
+    public synchronized String findVolume(String poolName, String name) throws VirtException {
+        return requireConnection().storageVolPath(poolName, name);
+    }
+
+    /**
+     * Looks up an empty qcow2 volume, creating it first if it does not exist.
+     *
+     * @param poolName the storage pool of the volume
+     * @param name     the volume name
+     * @param capacity the virtual size of a new volume in bytes
+     * @return the path of the volume
+     * @throws VirtException if the volume cannot be created
+     */
+    public synchronized String ensureVolume(String poolName, String name, long capacity) throws VirtException {
+        IConnect con = requireConnection();
+        String path = con.storageVolPath(poolName, name);
+        if (path == null) {
+            path = con.storageVolCreateXML(poolName, VolumeXml.qcow2(name, capacity));
+        }
+        return path;
+    }
+
+    public synchronized void deleteVolume(String path) throws VirtException {
+        requireConnection().storageVolDelete(path);
+    }
+
+    public synchronized IDomain defineDomain(String xmlDesc) throws VirtException {
+        return requireConnection().domainDefineXML(xmlDesc);
+    }
+
+    public OverlayPool getOverlayPool(EphemeralTemplate template) {
+        return getOverlayPool("template:" + template.getName(), template.getStoragePool(),
+                              template.getBaseImagePath(), template.getName(), template.getSpareOverlays());
+    }
+
+    /**
+     * Returns the pool of overlays registered under the given key, creating it
+     * on first use.
+     *
+     * @param key           identifies the pool, e.g. the template or node
+     * @param storagePool   the storage pool the overlays are created in
+     * @param baseImagePath the base image the overlays are put on top of
+     * @param namePrefix    prefix of the overlay volume names
+     * @param spares        number of overlays to keep ready
+     * @return the overlay pool
+     */
+    public OverlayPool getOverlayPool(String key, String storagePool, String baseImagePath,
+                                      String namePrefix, int spares) {
+        ensureLists();
+        return overlayPools.computeIfAbsent(key, k -> {
+            OverlayPool pool = new OverlayPool(this, storagePool, baseImagePath, namePrefix, spares);
+            pool.replenish();
+            return pool;
+        });
+    }
+
+    private int countEphemeralNodes(EphemeralTemplate template) {
+        int count = 0;
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof EphemeralVirtualMachineSlave) {
+                EphemeralVirtualMachineSlave slave = (EphemeralVirtualMachineSlave) node;
+                if (getHypervisorDescription().equals(slave.getHypervisorDescription())
+                    && template.getName().equals(slave.getTemplateName())) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Destroys the transient domains and deletes the overlays of ephemeral
+     * agents this controller no longer knows, e.g. because it restarted
+     * while they ran; ephemeral nodes are not persisted.
+     */
+    public void sweepEphemeral() {
+        for (EphemeralTemplate template : getTemplates()) {
+            try {
+                for (Map.Entry<String, IDomain> entry : getDomains().entrySet()) {
+                    String name = entry.getKey();
+                    if (isEphemeralName(template, name) && Jenkins.get().getNode(name) == null
+                        && entry.getValue().isRunningOrBlocked()) {
+                        LOGGER.log(Level.INFO, "Destroying orphaned ephemeral domain " + name + ".");
+                        entry.getValue().destroy();
+                    }
+                }
+                OverlayPool pool = overlayPools == null ? null : overlayPools.get("template:" + template.getName());
+                Set<String> inUse = new HashSet<>();
+                for (Node node : Jenkins.get().getNodes()) {
+                    if (node instanceof EphemeralVirtualMachineSlave) {
+                        inUse.add(((EphemeralVirtualMachineSlave) node).getOverlayPath());
+                    }
+                }
+                String[] paths;
+                synchronized (this) {
+                    paths = requireConnection().storageVolPaths(template.getStoragePool());
+                }
+                for (String path : paths) {
+                    String file = path.substring(path.lastIndexOf('/') + 1);
+                    if (!file.endsWith(".qcow2") || !isEphemeralName(template, file.substring(0, file.length() - 6))
+                        || inUse.contains(path) || pool != null && pool.mayOwn(path)) {
+                        continue;
+                    }
+                    LOGGER.log(Level.INFO, "Deleting orphaned overlay " + path + ".");
+                    deleteVolume(path);
+                }
+            } catch (VirtException e) {
+                LOGGER.log(Level.WARNING, "Cannot sweep the ephemeral agents of template " + template.getName()
+                                          + " on " + hypervisorHost + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * @return whether the domain or overlay name is one given out for the template
+     */
+    static boolean isEphemeralName(EphemeralTemplate template, String name) {
+        return name.matches(Pattern.quote(template.getName()) + "-[0-9a-f]{8}");
+    }
+
+    private Node provisionEphemeral(EphemeralTemplate template, String nodeName) throws Exception {
+        String overlay = getOverlayPool(template).take();
+        try {
+            Map<String, String> vars = new HashMap<>();
+            vars.put("NAME", nodeName);
+            vars.put("OVERLAY", overlay);
+            createTransientDomain(Util.replaceMacro(template.getDomainXml(), vars));
+        } catch (VirtException e) {
+            try {
+                deleteVolume(overlay);
+            } catch (VirtException e2) {
+                LOGGER.log(Level.WARNING, "Failed to delete overlay " + overlay + ": " + e2);
+            }
+            throw e;
+        }
+        LOGGER.log(Level.INFO, "Started ephemeral domain " + nodeName + " on overlay " + overlay + ".");
+        return new EphemeralVirtualMachineSlave(nodeName, template, this, overlay);
+    }
+
     @Override
-    public Collection<NodeProvisioner.PlannedNode> provision(Label label, int i) {
-        return Collections.emptySet();
+    public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
+        List<NodeProvisioner.PlannedNode> planned = new ArrayList<>();
+        final EphemeralTemplate template = getTemplate(label);
+        if (template == null) {
+            return planned;
+        }
+        ensureLists();
+        int existing = countEphemeralNodes(template);
+        while (excessWorkload > 0) {
+            if (template.getInstanceCap() > 0 && existing + planned.size() >= template.getInstanceCap()) {
+                break;
+            }
+            if (maxOnlineSlaves > 0 && currentOnline.size() + planned.size() >= maxOnlineSlaves) {
+                break;
+            }
+            final String nodeName = template.getName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+            planned.add(new NodeProvisioner.PlannedNode(nodeName,
+                    Computer.threadPoolForRemoting.submit(() -> provisionEphemeral(template, nodeName)),
+                    template.getNumExecutors()));
+            excessWorkload -= template.getNumExecutors();
+        }
+        return planned;
     }
 
     @Override
     public boolean canProvision(Label label) {
-        return false;
+        return getTemplate(label) != null;
     }
 
     @Override
@@ -338,7 +973,30 @@ public class Hypervisor extends Cloud {
         return sb.toString();
     }
 
-    public synchronized Boolean canMarkVMOnline(String slaveName, String vmName) {
+    public Boolean canMarkVMOnline(String slaveName, String vmName) {
+        HostCapacity capacity = readCapacityIfLive();
+        synchronized (this) {
+            return canMarkVMOnline(slaveName, vmName, capacity);
+        }
+    }
+
+    /**
+     * @return the host capacity if placement follows it, null otherwise or if it cannot be read
+     */
+    private HostCapacity readCapacityIfLive() {
+        if (!liveCapacity) {
+            return null;
+        }
+        try {
+            return getHostCapacity();
+        } catch (VirtException e) {
+            // without live figures the static limit still applies
+            LOGGER.log(Level.WARNING, "Cannot read the capacity of " + hypervisorHost + ": " + e);
+            return null;
+        }
+    }
+
+    private synchronized Boolean canMarkVMOnline(String slaveName, String vmName, HostCapacity capacity) {
         ensureLists();
 
         // Don't allow more than max.
@@ -366,25 +1024,39 @@ public class Hypervisor extends Cloud {
             return Boolean.FALSE;
         }
 
+        if (capacity != null) {
+            String refusal = capacity.refuse(vmName, getMemoryOvercommit(), getCpuOvercommit());
+            if (refusal != null) {
+                LOGGER.log(Level.INFO, "Not starting " + vmName + " on " + hypervisorHost + ": " + refusal + ".");
+                return Boolean.FALSE;
+            }
+        }
+
         return Boolean.TRUE;
     }
 
-    public synchronized Boolean markVMOnline(String slaveName, String vmName) {
-        ensureLists();
+    public Boolean markVMOnline(String slaveName, String vmName) {
+        HostCapacity capacity = readCapacityIfLive();
+        synchronized (this) {
+            ensureLists();
 
-        // If the combination is already in the list, it's good.
-        if (currentOnline.containsKey(slaveName) && currentOnline.get(slaveName).equals(vmName)) {
-            return Boolean.TRUE;
-        }
+            // If the combination is already in the list, it's good.
+            if (currentOnline.containsKey(slaveName) && currentOnline.get(slaveName).equals(vmName)) {
+                return Boolean.TRUE;
+            }
 
-        if (!canMarkVMOnline(slaveName, vmName)) {
-            return Boolean.FALSE;
-        }
+            if (!canMarkVMOnline(slaveName, vmName, capacity)) {
+                return Boolean.FALSE;
+            }
 
-        currentOnline.put(slaveName, vmName);
-        currentOnlineSlaveCount++;
+            currentOnline.put(slaveName, vmName);
+            currentOnlineSlaveCount++;
+            if (hostCapacity != null) {
+                hostCapacity.commit(vmName);
+            }
 
-        return Boolean.TRUE;
+            return Boolean.TRUE;
+        }
     }
 
     public synchronized void markVMOffline(String slaveName, String vmName)
@@ -394,10 +1066,16 @@ public class Hypervisor extends Cloud {
         if (currentOnline.remove(slaveName) != null) {
             currentOnlineSlaveCount--;
         }
+        if (numaPlacement != null) {
+            numaPlacement.release(vmName);
+        }
     }
 
     @Override
     protected void finalize() throws Throwable {
+        if (executor != null) {
+            executor.shutdown();
+        }
         if (connection != null) {
             connection.close();
         }
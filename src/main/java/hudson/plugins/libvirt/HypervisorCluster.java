@@ -0,0 +1,263 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.slaves.Cloud;
+import hudson.slaves.NodeProvisioner;
+
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Groups hypervisors that define the same domains on shared storage, so that
+ * an agent can be started on whichever of them is best placed at the time:
+ * the host it already runs on, else a reachable host with the fewest boots
+ * in flight and the most memory headroom. Hosts that fail to answer are left
+ * out for a while.
+ */
+public class HypervisorCluster extends Cloud {
+
+    private static final Logger LOGGER = Logger.getLogger(HypervisorCluster.class.getName());
+    private static final long CIRCUIT_OPEN_MS = TimeUnit.MINUTES.toMillis(1);
+
+    /** Descriptions of the member hypervisors, one per line. */
+    private final String hypervisors;
+
+    /** Memory load in percent above which domains are moved off a member, 0 to never move them. */
+    private int rebalanceThresholdPercent;
+
+    /** When the circuit of a member closes again, by hypervisor description. */
+    private transient Map<String, Long> openUntil;
+
+    @DataBoundConstructor
+    public HypervisorCluster(String name, String hypervisors) {
+        super(name);
+        this.hypervisors = hypervisors;
+    }
+
+    public String getHypervisors() {
+        return hypervisors;
+    }
+
+    public int getRebalanceThresholdPercent() {
+        return rebalanceThresholdPercent;
+    }
+
+    @DataBoundSetter
+    public void setRebalanceThresholdPercent(int rebalanceThresholdPercent) {
+        this.rebalanceThresholdPercent = Math.max(0, rebalanceThresholdPercent);
+    }
+
+    public static HypervisorCluster find(String name) {
+        if (name == null) {
+            return null;
+        }
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (cloud instanceof HypervisorCluster && name.equals(cloud.name)) {
+                return (HypervisorCluster) cloud;
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Hypervisor> getMembers() {
+        List<Hypervisor> members = new ArrayList<>();
+        if (hypervisors == null) {
+            return members;
+        }
+        for (String line : hypervisors.split("\\r?\\n")) {
+            String description = line.trim();
+            for (Cloud cloud : Jenkins.get().clouds) {
+                if (cloud instanceof Hypervisor && ((Hypervisor) cloud).getHypervisorDescription().equals(description)) {
+                    members.add((Hypervisor) cloud);
+                }
+            }
+        }
+        return members;
+    }
+
+    private synchronized Map<String, Long> getOpenUntil() {
+        if (openUntil == null) {
+            openUntil = new ConcurrentHashMap<>();
+        }
+        return openUntil;
+    }
+
+    public boolean isHealthy(Hypervisor member) {
+        Long until = getOpenUntil().get(member.getHypervisorDescription());
+        return until == null || until < System.currentTimeMillis();
+    }
+
+    private void reportFailure(Hypervisor member, VirtException e) {
+        LOGGER.log(Level.WARNING, member.getHypervisorDescription() + " of cluster " + name
+                                  + " is unreachable, leaving it out for a minute: " + e);
+        getOpenUntil().put(member.getHypervisorDescription(), System.currentTimeMillis() + CIRCUIT_OPEN_MS);
+    }
+
+    /**
+     * Picks the member to start a domain on.
+     *
+     * @param vmName    the domain, defined on every member
+     * @param slaveName the agent about to start
+     * @return the member, null if none can take it now
+     */
+    public Hypervisor place(String vmName, String slaveName) {
+        List<Hypervisor> candidates = new ArrayList<>();
+        for (Hypervisor member : getMembers()) {
+            if (!isHealthy(member)) {
+                continue;
+            }
+            IDomain domain;
+            try {
+                // listing fails on unreachable hosts only, a lookup also on hosts without the domain
+                domain = member.getDomains().get(vmName);
+                if (domain != null && (domain.isRunningOrBlocked() || domain.isPaused())) {
+                    // never start a second copy of a domain on shared storage
+                    return member;
+                }
+            } catch (VirtException e) {
+                reportFailure(member, e);
+                continue;
+            }
+            if (domain != null && !member.isDraining() && member.canMarkVMOnline(slaveName, vmName)) {
+                candidates.add(member);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        candidates.sort(Comparator.comparingInt(Hypervisor::getBootsInFlight)
+                                  .thenComparing(Comparator.comparingLong(Hypervisor::getMemoryHeadroom).reversed()));
+        return candidates.get(0);
+    }
+
+    /**
+     * Picks the member to live-migrate a running domain to.
+     *
+     * @param vmName    the domain
+     * @param slaveName the agent of the domain
+     * @param source    the member the domain runs on
+     * @return the member, null if no other member can take it
+     */
+    public Hypervisor placeMigration(String vmName, String slaveName, Hypervisor source) {
+        Hypervisor best = null;
+        for (Hypervisor member : getMembers()) {
+            if (member == source || member.isDraining() || !isHealthy(member)
+                || !member.canMarkVMOnline(slaveName, vmName)) {
+                continue;
+            }
+            if (best == null || member.getMemoryHeadroom() > best.getMemoryHeadroom()) {
+                best = member;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param hypervisor a hypervisor
+     * @return the agents of this cluster whose domain currently runs on it
+     */
+    public List<VirtualMachineSlave> getSlavesOn(Hypervisor hypervisor) {
+        List<VirtualMachineSlave> slaves = new ArrayList<>();
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof VirtualMachineSlave && name.equals(((VirtualMachineSlave) node).getClusterName())) {
+                VirtualMachineSlave slave = (VirtualMachineSlave) node;
+                try {
+                    if (((VirtualMachineLauncher) slave.getLauncher()).findOurHypervisorInstance() == hypervisor) {
+                        slaves.add(slave);
+                    }
+                } catch (VirtException e) {
+                    // not placed anywhere known
+                }
+            }
+        }
+        return slaves;
+    }
+
+    /**
+     * Live-migrates every running agent domain off the given member, which
+     * takes no new agents until {@link Hypervisor#setDraining(boolean)} is
+     * reset.
+     *
+     * @param source the member to drain
+     * @return the number of domains that could not be moved
+     */
+    public int drain(Hypervisor source) {
+        source.setDraining(true);
+        int left = 0;
+        for (VirtualMachineSlave slave : getSlavesOn(source)) {
+            try {
+                IDomain domain = source.getDomain(slave.getVirtualMachineName());
+                if (domain == null || !domain.isRunningOrBlocked()) {
+                    continue;
+                }
+                Hypervisor target = placeMigration(slave.getVirtualMachineName(), slave.getNodeName(), source);
+                if (target == null) {
+                    LOGGER.log(Level.WARNING, "No member of cluster " + name + " can take " + slave.getVirtualMachineName() + ".");
+                    left++;
+                    continue;
+                }
+                source.migrate(slave, target);
+            } catch (VirtException e) {
+                LOGGER.log(Level.WARNING, "Migrating " + slave.getVirtualMachineName() + " off "
+                                          + source.getHypervisorHost() + " failed: " + e);
+                left++;
+            }
+        }
+        return left;
+    }
+
+    /**
+     * @param hypervisor a hypervisor
+     * @return the clusters it is a member of
+     */
+    public static List<HypervisorCluster> of(Hypervisor hypervisor) {
+        List<HypervisorCluster> clusters = new ArrayList<>();
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (cloud instanceof HypervisorCluster && ((HypervisorCluster) cloud).getMembers().contains(hypervisor)) {
+                clusters.add((HypervisorCluster) cloud);
+            }
+        }
+        return clusters;
+    }
+
+    @Override
+    public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean canProvision(Label label) {
+        return false;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<Cloud> {
+
+        @Override
+        public String getDisplayName() {
+            return "Hypervisor cluster (via libvirt)";
+        }
+    }
+}
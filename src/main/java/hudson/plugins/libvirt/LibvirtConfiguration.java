@@ -0,0 +1,100 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+
+import jenkins.model.GlobalConfiguration;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Global settings of the libvirt agents that are not tied to a single
+ * hypervisor.
+ */
+@Extension
+public class LibvirtConfiguration extends GlobalConfiguration {
+
+    private static final int DEFAULT_LEAD_MINUTES = 15;
+
+    private boolean predictiveBoot;
+    private int predictiveLeadMinutes = DEFAULT_LEAD_MINUTES;
+    private boolean collectDomainStats = true;
+    private List<QosProfile> qosProfiles;
+    private List<CacheDisk> cacheDisks;
+
+    public LibvirtConfiguration() {
+        load();
+    }
+
+    public static LibvirtConfiguration get() {
+        return GlobalConfiguration.all().get(LibvirtConfiguration.class);
+    }
+
+    public boolean isPredictiveBoot() {
+        return predictiveBoot;
+    }
+
+    @DataBoundSetter
+    public void setPredictiveBoot(boolean predictiveBoot) {
+        this.predictiveBoot = predictiveBoot;
+    }
+
+    public int getPredictiveLeadMinutes() {
+        return predictiveLeadMinutes;
+    }
+
+    @DataBoundSetter
+    public void setPredictiveLeadMinutes(int predictiveLeadMinutes) {
+        this.predictiveLeadMinutes = predictiveLeadMinutes;
+    }
+
+    public boolean isCollectDomainStats() {
+        return collectDomainStats;
+    }
+
+    @DataBoundSetter
+    public void setCollectDomainStats(boolean collectDomainStats) {
+        this.collectDomainStats = collectDomainStats;
+    }
+
+    /**
+     * @return false if the domain statistics are turned off
+     */
+    static boolean isCollectingDomainStats() {
+        LibvirtConfiguration config = get();
+        return config == null || config.isCollectDomainStats();
+    }
+
+    public List<QosProfile> getQosProfiles() {
+        return qosProfiles == null ? Collections.emptyList() : qosProfiles;
+    }
+
+    @DataBoundSetter
+    public void setQosProfiles(List<QosProfile> qosProfiles) {
+        this.qosProfiles = qosProfiles;
+    }
+
+    public List<CacheDisk> getCacheDisks() {
+        return cacheDisks == null ? Collections.emptyList() : cacheDisks;
+    }
+
+    @DataBoundSetter
+    public void setCacheDisks(List<CacheDisk> cacheDisks) {
+        this.cacheDisks = cacheDisks;
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        // repeatable entries left empty are not submitted at all
+        qosProfiles = null;
+        cacheDisks = null;
+        req.bindJSON(this, json);
+        save();
+        return true;
+    }
+}
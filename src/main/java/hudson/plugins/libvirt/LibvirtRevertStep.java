@@ -0,0 +1,80 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Reverts the domain of the libvirt agent the build runs on to a snapshot
+ * and waits for the agent to reconnect.
+ */
+public class LibvirtRevertStep extends Step {
+
+    private final String name;
+
+    @DataBoundConstructor
+    public LibvirtRevertStep(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) {
+        return new Execution(name, context);
+    }
+
+    private static final class Execution extends SynchronousNonBlockingStepExecution<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        Execution(String name, StepContext context) {
+            super(context);
+            this.name = name;
+        }
+
+        @Override
+        protected Void run() throws Exception {
+            VirtualMachineSlaveComputer c = LibvirtSnapshotStep.getComputer(getContext());
+            c.revertInBuild(name, getContext().get(TaskListener.class));
+            return null;
+        }
+    }
+
+    @Extension(optional = true)
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public String getFunctionName() {
+            return "libvirtRevert";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Revert the libvirt agent to a snapshot";
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            Set<Class<?>> context = new HashSet<>();
+            context.add(Computer.class);
+            context.add(TaskListener.class);
+            return Collections.unmodifiableSet(context);
+        }
+    }
+}
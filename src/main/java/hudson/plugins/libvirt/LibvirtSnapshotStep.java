@@ -0,0 +1,107 @@
+package hudson.plugins.libvirt;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Takes a snapshot of the domain of the libvirt agent the build runs on.
+ */
+public class LibvirtSnapshotStep extends Step {
+
+    private final String name;
+    private String description;
+
+    @DataBoundConstructor
+    public LibvirtSnapshotStep(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    @DataBoundSetter
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    /**
+     * @param context the step context, which must be inside a {@code node} block
+     * @return the computer of the libvirt agent the step runs on
+     * @throws Exception if the step does not run on a libvirt agent
+     */
+    static VirtualMachineSlaveComputer getComputer(StepContext context) throws Exception {
+        Computer c = context.get(Computer.class);
+        if (!(c instanceof VirtualMachineSlaveComputer) || c.getNode() instanceof EphemeralVirtualMachineSlave) {
+            throw new AbortException("Not running on a libvirt agent with a persistent domain");
+        }
+        return (VirtualMachineSlaveComputer) c;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) {
+        return new Execution(name, description, context);
+    }
+
+    private static final class Execution extends SynchronousNonBlockingStepExecution<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final String description;
+
+        Execution(String name, String description, StepContext context) {
+            super(context);
+            this.name = name;
+            this.description = description;
+        }
+
+        @Override
+        protected Void run() throws Exception {
+            VirtualMachineSlaveComputer c = getComputer(getContext());
+            getContext().get(TaskListener.class).getLogger().println("Taking snapshot " + name + " of " + c.getName() + ".");
+            c.takeSnapshot(name, description);
+            return null;
+        }
+    }
+
+    @Extension(optional = true)
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public String getFunctionName() {
+            return "libvirtSnapshot";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Take a snapshot of the libvirt agent";
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            Set<Class<?>> context = new HashSet<>();
+            context.add(Computer.class);
+            context.add(TaskListener.class);
+            return Collections.unmodifiableSet(context);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package hudson.plugins.libvirt;
+
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.plugins.libvirt.util.DomainXml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Keeps the vCPUs of every agent domain on the cores of a single NUMA node of
+ * its hypervisor, spreading the domains over the nodes and cores so that the
+ * least busy ones are used first. The pins are applied to the running
+ * domain whenever the agent is launched and released from the bookkeeping
+ * once the agent goes offline.
+ */
+public class NumaPlacement {
+
+    private static final Logger LOGGER = Logger.getLogger(NumaPlacement.class.getName());
+
+    /** Host CPU ids per NUMA node, and the core of every CPU. */
+    private final Map<Integer, List<Integer>> cellCpus = new LinkedHashMap<>();
+    private final Map<Integer, String> cpuCore = new HashMap<>();
+
+    /** Placement per domain name. */
+    private final Map<String, Placement> placements = new LinkedHashMap<>();
+
+    /**
+     * Where the vCPUs of one domain run.
+     */
+    public static final class Placement {
+        private final int cell;
+        private final List<Integer> cpus;
+
+        Placement(int cell, List<Integer> cpus) {
+            this.cell = cell;
+            this.cpus = cpus;
+        }
+
+        public int getCell() {
+            return cell;
+        }
+
+        public List<Integer> getCpus() {
+            return Collections.unmodifiableList(cpus);
+        }
+
+        public String getCpuSet() {
+            return cpus.stream().map(String::valueOf).collect(Collectors.joining(","));
+        }
+    }
+
+    /**
+     * @param capabilities the capabilities XML of the host
+     * @throws VirtException if the XML cannot be parsed
+     */
+    public NumaPlacement(String capabilities) throws VirtException {
+        NodeList cells = DomainXml.parse(capabilities).getElementsByTagName("cell");
+        for (int i = 0; i < cells.getLength(); i++) {
+            Element cell = (Element) cells.item(i);
+            int id = Integer.parseInt(cell.getAttribute("id"));
+            List<Integer> cpus = new ArrayList<>();
+            NodeList cpuList = cell.getElementsByTagName("cpu");
+            for (int j = 0; j < cpuList.getLength(); j++) {
+                Element cpu = (Element) cpuList.item(j);
+                int cpuId = Integer.parseInt(cpu.getAttribute("id"));
+                cpus.add(cpuId);
+                cpuCore.put(cpuId, cpu.getAttribute("socket_id") + ":" + cpu.getAttribute("core_id"));
+            }
+            cellCpus.put(id, cpus);
+        }
+    }
+
+    public boolean isNuma() {
+        return cellCpus.size() > 1;
+    }
+
+    private Map<Integer, Integer> cpuLoad() {
+        Map<Integer, Integer> load = new HashMap<>();
+        for (Placement placement : placements.values()) {
+            for (int cpu : placement.cpus) {
+                load.merge(cpu, 1, Integer::sum);
+            }
+        }
+        return load;
+    }
+
+    /**
+     * Places the vCPUs of a domain on the least loaded NUMA node that has
+     * enough CPUs, using separate cores before hyperthread siblings.
+     *
+     * @param vmName the domain
+     * @param vcpus  the number of its vCPUs
+     * @return the placement, null if no node has that many CPUs
+     */
+    public synchronized Placement place(String vmName, int vcpus) {
+        placements.remove(vmName);
+        Map<Integer, Integer> load = cpuLoad();
+        Integer bestCell = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (Map.Entry<Integer, List<Integer>> cell : cellCpus.entrySet()) {
+            if (cell.getValue().size() < vcpus) {
+                continue;
+            }
+            int cellLoad = 0;
+            for (int cpu : cell.getValue()) {
+                cellLoad += load.getOrDefault(cpu, 0);
+            }
+            if (cellLoad < bestLoad) {
+                bestLoad = cellLoad;
+                bestCell = cell.getKey();
+            }
+        }
+        if (bestCell == null) {
+            return null;
+        }
+
+        Map<String, Integer> coreLoad = new HashMap<>();
+        for (Map.Entry<Integer, Integer> cpu : load.entrySet()) {
+            coreLoad.merge(cpuCore.get(cpu.getKey()), cpu.getValue(), Integer::sum);
+        }
+        List<Integer> chosen = new ArrayList<>();
+        for (int i = 0; i < vcpus; i++) {
+            Integer next = cellCpus.get(bestCell).stream()
+                    .filter(cpu -> !chosen.contains(cpu))
+                    .min(Comparator.comparingInt((Integer cpu) -> load.getOrDefault(cpu, 0))
+                                   .thenComparingInt(cpu -> coreLoad.getOrDefault(cpuCore.get(cpu), 0)))
+                    .orElse(null);
+            if (next == null) {
+                return null;
+            }
+            chosen.add(next);
+            coreLoad.merge(cpuCore.get(next), 1, Integer::sum);
+        }
+        Placement placement = new Placement(bestCell, chosen);
+        placements.put(vmName, placement);
+        return placement;
+    }
+
+    public synchronized void release(String vmName) {
+        placements.remove(vmName);
+    }
+
+    public synchronized Map<String, Placement> getPlacements() {
+        return new LinkedHashMap<>(placements);
+    }
+
+    /**
+     * @return all CPUs of the host, for a domain that is not pinned
+     */
+    public List<Integer> getAllCpus() {
+        List<Integer> all = new ArrayList<>();
+        for (List<Integer> cpus : cellCpus.values()) {
+            all.addAll(cpus);
+        }
+        Collections.sort(all);
+        return all;
+    }
+
+    /**
+     * Pins the running domain to a placement: one CPU per vCPU, the emulator
+     * threads on the same CPUs and, where libvirt allows it, memory bound to
+     * the node. Only the live domain changes, so nothing outlives it.
+     *
+     * @param domain    the running domain
+     * @param placement the placement
+     * @throws VirtException if the vCPUs or emulator threads cannot be pinned
+     */
+    public static void pin(IDomain domain, Placement placement) throws VirtException {
+        for (int vcpu = 0; vcpu < placement.cpus.size(); vcpu++) {
+            domain.pinVcpu(vcpu, Collections.singletonList(placement.cpus.get(vcpu)));
+        }
+        domain.pinEmulator(placement.cpus);
+        try {
+            domain.setNumaNodeset(Integer.toString(placement.cell));
+        } catch (VirtException e) {
+            LOGGER.log(Level.FINE, "Cannot bind the memory of the domain to node " + placement.cell + ": " + e);
+        }
+    }
+
+    /**
+     * Lets the vCPUs and emulator threads of the running domain use any CPU
+     * again, e.g. after a resume of a domain pinned before it was paused.
+     *
+     * @param domain the running domain
+     * @param vcpus  the number of its vCPUs
+     * @throws VirtException if the pins cannot be changed
+     */
+    public void unpin(IDomain domain, int vcpus) throws VirtException {
+        List<Integer> all = getAllCpus();
+        for (int vcpu = 0; vcpu < vcpus; vcpu++) {
+            domain.pinVcpu(vcpu, all);
+        }
+        domain.pinEmulator(all);
+    }
+}
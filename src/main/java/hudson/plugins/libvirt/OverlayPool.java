@@ -0,0 +1,107 @@
+package hudson.plugins.libvirt;
+
+import hudson.model.Computer;
+import hudson.plugins.libvirt.lib.VirtException;
+
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a number of empty overlays on top of a base image ready, so that
+ * handing one out does not have to wait for the storage backend.
+ */
+public class OverlayPool {
+
+    private static final Logger LOGGER = Logger.getLogger(OverlayPool.class.getName());
+
+    private final Hypervisor hypervisor;
+    private final String storagePool;
+    private final String baseImagePath;
+    private final String namePrefix;
+    private final int spares;
+    private final Queue<String> ready = new ConcurrentLinkedQueue<>();
+    private int pending = 0;
+
+    public OverlayPool(Hypervisor hypervisor, String storagePool, String baseImagePath,
+                       String namePrefix, int spares) {
+        this.hypervisor = hypervisor;
+        this.storagePool = storagePool;
+        this.baseImagePath = baseImagePath;
+        this.namePrefix = namePrefix;
+        this.spares = spares;
+    }
+
+    /**
+     * Hands out a spare overlay or creates one right away if none is ready.
+     *
+     * @return the path of an empty overlay nobody else uses
+     * @throws VirtException if the overlay cannot be created
+     */
+    public String take() throws VirtException {
+        String path = ready.poll();
+        replenish();
+        if (path == null) {
+            path = create();
+        }
+        return path;
+    }
+
+    public int getReadyCount() {
+        return ready.size();
+    }
+
+    /**
+     * @param path an overlay path
+     * @return whether the overlay is a spare of this pool, or may be about to become one
+     */
+    public synchronized boolean mayOwn(String path) {
+        return pending > 0 || ready.contains(path);
+    }
+
+    /**
+     * Creates spare overlays in the background until the configured number is
+     * either ready or on its way.
+     */
+    public synchronized void replenish() {
+        while (ready.size() + pending < spares) {
+            pending++;
+            Computer.threadPoolForRemoting.submit(() -> {
+                try {
+                    ready.add(create());
+                } catch (VirtException e) {
+                    LogRecord rec = new LogRecord(Level.WARNING, "Failed to create spare overlay of {0} in pool {1}.");
+                    rec.setParameters(new Object[]{baseImagePath, storagePool});
+                    rec.setThrown(e);
+                    LOGGER.log(rec);
+                } finally {
+                    synchronized (OverlayPool.this) {
+                        pending--;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Deletes all spare overlays, e.g. once the base image has changed.
+     */
+    public void discardSpares() {
+        String path;
+        while ((path = ready.poll()) != null) {
+            try {
+                hypervisor.deleteVolume(path);
+            } catch (VirtException e) {
+                LOGGER.log(Level.WARNING, "Failed to delete spare overlay " + path + ": " + e);
+            }
+        }
+    }
+
+    private String create() throws VirtException {
+        String name = namePrefix + "-" + UUID.randomUUID().toString().substring(0, 8) + ".qcow2";
+        return hypervisor.createOverlay(storagePool, name, baseImagePath);
+    }
+}
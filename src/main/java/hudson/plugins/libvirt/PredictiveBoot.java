@@ -0,0 +1,130 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.QueueListener;
+import hudson.slaves.OfflineCause;
+
+import jenkins.model.Jenkins;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Boots libvirt agents ahead of the demand forecast by {@link DemandHistory}
+ * and stops the ones it booted once the forecast drops again.
+ */
+@Extension
+public class PredictiveBoot extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(PredictiveBoot.class.getName());
+    private static final long IDLE_BEFORE_STOP_MS = TimeUnit.MINUTES.toMillis(5);
+
+    /** Agents booted because of a forecast rather than actual demand. */
+    private final Set<String> booted = ConcurrentHashMap.newKeySet();
+
+    public PredictiveBoot() {
+        super("Libvirt predictive boot");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        LibvirtConfiguration config = LibvirtConfiguration.get();
+        if (config == null || !config.isPredictiveBoot()) {
+            return;
+        }
+        DemandHistory history = DemandHistory.get();
+        long now = System.currentTimeMillis();
+        if (history.roll(now)) {
+            history.save();
+        }
+        long ahead = now + TimeUnit.MINUTES.toMillis(config.getPredictiveLeadMinutes());
+        for (String expression : history.getLabels()) {
+            Label label = expression.isEmpty() ? null : Jenkins.get().getLabel(expression);
+            int wanted = (int) Math.ceil(history.forecastExecutors(expression, ahead));
+            int stillWanted = (int) Math.ceil(Math.max(history.forecastExecutors(expression, now), wanted));
+            adjust(expression, label, wanted, stillWanted);
+        }
+    }
+
+    private static boolean matches(Label label, Node node) {
+        if (label == null) {
+            return node.getMode() == Node.Mode.NORMAL;
+        }
+        return label.contains(node);
+    }
+
+    /**
+     * Boots agents until the label has the wanted number of executors, or
+     * stops idle agents booted earlier that exceed what is still wanted.
+     */
+    private void adjust(String expression, Label label, int wanted, int stillWanted) {
+        int executors = 0;
+        for (Node node : Jenkins.get().getNodes()) {
+            Computer c = node.toComputer();
+            if (c != null && matches(label, node) && (c.isOnline() || c.isConnecting())) {
+                executors += node.getNumExecutors();
+            }
+        }
+
+        if (executors < wanted) {
+            for (Node node : Jenkins.get().getNodes()) {
+                if (executors >= wanted) {
+                    break;
+                }
+                if (matches(label, node) && QueuePrestartListener.isCandidate(node)
+                    && QueuePrestartListener.start((VirtualMachineSlave) node)) {
+                    LOGGER.log(Level.INFO, "Booting " + node.getNodeName() + " ahead of forecast demand for '" + expression + "'.");
+                    booted.add(node.getNodeName());
+                    executors += node.getNumExecutors();
+                }
+            }
+        } else if (executors > stillWanted) {
+            long now = System.currentTimeMillis();
+            for (String nodeName : booted) {
+                Node node = Jenkins.get().getNode(nodeName);
+                Computer c = node == null ? null : node.toComputer();
+                if (c == null || c.isOffline()) {
+                    booted.remove(nodeName);
+                    continue;
+                }
+                if (executors <= stillWanted) {
+                    break;
+                }
+                if (matches(label, node) && c.isIdle() && now - c.getIdleStartMilliseconds() > IDLE_BEFORE_STOP_MS) {
+                    LOGGER.log(Level.INFO, "Forecast demand for '" + expression + "' dropped, stopping " + nodeName + ".");
+                    booted.remove(nodeName);
+                    c.disconnect(new OfflineCause.ByCLI("Forecast demand dropped."));
+                    executors -= node.getNumExecutors();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records every item entering the queue in the demand history.
+     */
+    @Extension
+    public static class ArrivalRecorder extends QueueListener {
+
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem item) {
+            Label label = item.getAssignedLabel();
+            DemandHistory.get().record(label == null ? "" : label.getExpression(), System.currentTimeMillis(),
+                                       item.task.getEstimatedDuration());
+        }
+    }
+}
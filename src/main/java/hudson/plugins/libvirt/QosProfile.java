@@ -0,0 +1,266 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.plugins.libvirt.util.DomainXml;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Resource limits applied to the running domain of an agent whenever it is
+ * launched: CPU shares and quota, block I/O weight and IOPS caps, and
+ * network bandwidth. A profile applies to the agents whose labels match its
+ * label expression, unless an agent names a profile of its own. Zero leaves
+ * a setting as defined.
+ */
+public class QosProfile extends AbstractDescribableImpl<QosProfile> {
+
+    private static final long CPU_PERIOD_US = 100000L;
+    private static final long NO_QUOTA = -1L;
+    /** What the cgroups of a domain get when its definition sets nothing. */
+    private static final long DEFAULT_CPU_SHARES = 1024L;
+    private static final long DEFAULT_BLKIO_WEIGHT = 500L;
+
+    private final String name;
+    private final String labelString;
+    private final int cpuShares;
+    private final int cpuQuotaPercent;
+    private final int blkioWeight;
+    private final long readIopsSec;
+    private final long writeIopsSec;
+    private final int bandwidthKBps;
+
+    @DataBoundConstructor
+    public QosProfile(String name, String labelString, int cpuShares, int cpuQuotaPercent, int blkioWeight,
+                      long readIopsSec, long writeIopsSec, int bandwidthKBps) {
+        this.name = name;
+        this.labelString = labelString;
+        this.cpuShares = cpuShares;
+        this.cpuQuotaPercent = cpuQuotaPercent;
+        this.blkioWeight = blkioWeight;
+        this.readIopsSec = readIopsSec;
+        this.writeIopsSec = writeIopsSec;
+        this.bandwidthKBps = bandwidthKBps;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLabelString() {
+        return labelString;
+    }
+
+    public int getCpuShares() {
+        return cpuShares;
+    }
+
+    public int getCpuQuotaPercent() {
+        return cpuQuotaPercent;
+    }
+
+    public int getBlkioWeight() {
+        return blkioWeight;
+    }
+
+    public long getReadIopsSec() {
+        return readIopsSec;
+    }
+
+    public long getWriteIopsSec() {
+        return writeIopsSec;
+    }
+
+    public int getBandwidthKBps() {
+        return bandwidthKBps;
+    }
+
+    /**
+     * @param slave the agent
+     * @return the profile the agent names, else the first whose label
+     *         expression matches it, null if none
+     */
+    public static QosProfile forNode(VirtualMachineSlave slave) {
+        LibvirtConfiguration config = LibvirtConfiguration.get();
+        if (config == null) {
+            return null;
+        }
+        String own = slave.getQosProfile();
+        for (QosProfile profile : config.getQosProfiles()) {
+            if (own != null) {
+                if (own.equals(profile.getName())) {
+                    return profile;
+                }
+            } else if (Util.fixEmptyAndTrim(profile.getLabelString()) != null
+                       && Label.parseExpression(profile.getLabelString()).matches(slave)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Applies the limits of the profile to the running domain, without
+     * touching its definition. Limits the profile does not set go back to
+     * those of the definition, or to none, if an earlier profile changed them.
+     *
+     * @param profile the profile of the agent, null if it has none
+     * @param domain  the running domain
+     * @throws VirtException if a limit cannot be applied
+     */
+    public static void applyTo(QosProfile profile, IDomain domain) throws VirtException {
+        Limits limits = limits(profile, domain.getInactiveXMLDesc(), domain.getXMLDesc());
+        if (!limits.scheduler.isEmpty()) {
+            domain.setSchedulerParameters(limits.scheduler);
+        }
+        if (limits.blkioWeight > 0) {
+            domain.setBlkioWeight(limits.blkioWeight);
+        }
+        for (Map.Entry<String, long[]> disk : limits.iotune.entrySet()) {
+            domain.setBlockIoTune(disk.getKey(), disk.getValue()[0], disk.getValue()[1]);
+        }
+        for (Map.Entry<String, Integer> device : limits.bandwidth.entrySet()) {
+            domain.setInterfaceBandwidth(device.getKey(), device.getValue());
+        }
+    }
+
+    /**
+     * Works out the live limits of a domain. A setting is only included if
+     * the profile sets it or the running domain has it, as otherwise there
+     * is nothing to change.
+     *
+     * @param profile the profile, null for none
+     * @param defined the inactive domain XML
+     * @param live    the live domain XML
+     * @return the limits to apply
+     * @throws VirtException if the XML cannot be parsed
+     */
+    static Limits limits(QosProfile profile, String defined, String live) throws VirtException {
+        Element definedRoot = DomainXml.parse(defined).getDocumentElement();
+        Document liveDoc = DomainXml.parse(live);
+        Element liveRoot = liveDoc.getDocumentElement();
+        Limits limits = new Limits();
+
+        int shares = profile == null ? 0 : profile.cpuShares;
+        if (shares > 0 || tuned(liveRoot, "cputune", "shares")) {
+            limits.scheduler.put("cpu_shares", shares > 0 ? shares : number(definedRoot, "cputune", "shares", DEFAULT_CPU_SHARES));
+        }
+        int quotaPercent = profile == null ? 0 : profile.cpuQuotaPercent;
+        if (quotaPercent > 0) {
+            limits.scheduler.put("vcpu_period", CPU_PERIOD_US);
+            limits.scheduler.put("vcpu_quota", CPU_PERIOD_US * quotaPercent / 100);
+        } else if (tuned(liveRoot, "cputune", "quota")) {
+            limits.scheduler.put("vcpu_period", number(definedRoot, "cputune", "period", CPU_PERIOD_US));
+            limits.scheduler.put("vcpu_quota", number(definedRoot, "cputune", "quota", NO_QUOTA));
+        }
+
+        int weight = profile == null ? 0 : profile.blkioWeight;
+        if (weight > 0 || tuned(liveRoot, "blkiotune", "weight")) {
+            limits.blkioWeight = weight > 0 ? weight : (int) number(definedRoot, "blkiotune", "weight", DEFAULT_BLKIO_WEIGHT);
+        }
+
+        long readIops = profile == null ? 0 : profile.readIopsSec;
+        long writeIops = profile == null ? 0 : profile.writeIopsSec;
+        Document definedDoc = definedRoot.getOwnerDocument();
+        NodeList disks = liveDoc.getElementsByTagName("disk");
+        for (int i = 0; i < disks.getLength(); i++) {
+            Element disk = (Element) disks.item(i);
+            Element target = DomainXml.firstChild(disk, "target");
+            if (!"disk".equals(disk.getAttribute("device")) || target == null) {
+                continue;
+            }
+            if (readIops > 0 || writeIops > 0 || DomainXml.firstChild(disk, "iotune") != null) {
+                String dev = target.getAttribute("dev");
+                Element definedDisk = DomainXml.findDisk(definedDoc, dev);
+                limits.iotune.put(dev, new long[]{
+                    readIops > 0 ? readIops : number(definedDisk, "iotune", "read_iops_sec", 0),
+                    writeIops > 0 ? writeIops : number(definedDisk, "iotune", "write_iops_sec", 0)});
+            }
+        }
+
+        int bandwidth = profile == null ? 0 : profile.bandwidthKBps;
+        NodeList interfaces = liveDoc.getElementsByTagName("interface");
+        for (int i = 0; i < interfaces.getLength(); i++) {
+            Element iface = (Element) interfaces.item(i);
+            Element target = DomainXml.firstChild(iface, "target");
+            if (target == null || !target.hasAttribute("dev")) {
+                continue;
+            }
+            if (bandwidth > 0 || DomainXml.firstChild(iface, "bandwidth") != null) {
+                limits.bandwidth.put(target.getAttribute("dev"),
+                        bandwidth > 0 ? bandwidth : definedBandwidth(definedDoc, mac(iface)));
+            }
+        }
+        return limits;
+    }
+
+    /** The live limits of a domain, see {@link #limits}. */
+    static final class Limits {
+        final Map<String, Long> scheduler = new LinkedHashMap<>();
+        int blkioWeight;
+        /** Read and write IOPS caps by disk target. */
+        final Map<String, long[]> iotune = new LinkedHashMap<>();
+        /** Average bandwidth in KiB/s by interface target. */
+        final Map<String, Integer> bandwidth = new LinkedHashMap<>();
+    }
+
+    private static boolean tuned(Element root, String section, String name) {
+        Element element = DomainXml.firstChild(root, section);
+        return element != null && DomainXml.firstChild(element, name) != null;
+    }
+
+    private static long number(Element parent, String section, String name, long fallback) {
+        Element element = parent == null ? null : DomainXml.firstChild(parent, section);
+        Element child = element == null ? null : DomainXml.firstChild(element, name);
+        if (child == null) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(child.getTextContent().trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static String mac(Element iface) {
+        Element mac = DomainXml.firstChild(iface, "mac");
+        return mac == null ? null : mac.getAttribute("address");
+    }
+
+    private static int definedBandwidth(Document defined, String mac) {
+        NodeList interfaces = defined.getElementsByTagName("interface");
+        for (int i = 0; i < interfaces.getLength(); i++) {
+            Element iface = (Element) interfaces.item(i);
+            Element bandwidth = DomainXml.firstChild(iface, "bandwidth");
+            Element inbound = bandwidth == null ? null : DomainXml.firstChild(bandwidth, "inbound");
+            if (mac != null && mac.equalsIgnoreCase(mac(iface)) && inbound != null) {
+                try {
+                    return Integer.parseInt(inbound.getAttribute("average"));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<QosProfile> {
+
+        @Override
+        public String getDisplayName() {
+            return "QoS profile";
+        }
+    }
+}
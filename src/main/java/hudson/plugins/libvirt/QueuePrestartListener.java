@@ -0,0 +1,170 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.slaves.OfflineCause;
+
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Starts offline libvirt agents as soon as buildable items for their labels
+ * show up in the queue, so that booting the domains overlaps with the queue
+ * wait. Agents started for an item that goes elsewhere are stopped again.
+ */
+@Extension
+public class QueuePrestartListener extends QueueListener {
+
+    private static final Logger LOGGER = Logger.getLogger(QueuePrestartListener.class.getName());
+
+    /** Nodes started on behalf of a queue item, by item id. */
+    private final Map<Long, Set<String>> prestarted = new ConcurrentHashMap<>();
+    /** One lock per label expression, so that items of a label do not start agents for the same demand twice. */
+    private final Map<String, Object> labelLocks = new ConcurrentHashMap<>();
+
+    @Override
+    public void onEnterBuildable(final Queue.BuildableItem item) {
+        // called with the queue lock held, do the work elsewhere
+        Computer.threadPoolForRemoting.submit(() -> prestart(item));
+    }
+
+    @Override
+    public void onLeft(final Queue.LeftItem item) {
+        final Set<String> nodes = prestarted.remove(item.getId());
+        if (nodes != null) {
+            Computer.threadPoolForRemoting.submit(() -> cancel(nodes));
+        }
+    }
+
+    private static boolean canTake(Node node, Queue.BuildableItem item) {
+        return node.canTake(item) == null;
+    }
+
+    static boolean isCandidate(Node node) {
+        if (!(node instanceof VirtualMachineSlave) || node instanceof EphemeralVirtualMachineSlave) {
+            return false;
+        }
+        Computer c = node.toComputer();
+        return c != null && c.isOffline() && !c.isConnecting() && !c.isTemporarilyOffline();
+    }
+
+    /**
+     * Starts as many offline agents as there are buildable items for the
+     * label of the given item not covered by idle or starting executors.
+     *
+     * @param item the item that just became buildable
+     */
+    void prestart(Queue.BuildableItem item) {
+        Label label = item.getAssignedLabel();
+        synchronized (labelLocks.computeIfAbsent(label == null ? "" : label.getExpression(), l -> new Object())) {
+            prestart(item, label);
+        }
+    }
+
+    private void prestart(Queue.BuildableItem item, Label label) {
+        Jenkins jenkins = Jenkins.get();
+
+        int demand = 0;
+        for (Queue.BuildableItem other : Queue.getInstance().getBuildableItems()) {
+            if (Objects.equals(label, other.getAssignedLabel())) {
+                demand++;
+            }
+        }
+
+        List<VirtualMachineSlave> candidates = new ArrayList<>();
+        for (Node node : jenkins.getNodes()) {
+            if (!canTake(node, item)) {
+                continue;
+            }
+            Computer c = node.toComputer();
+            if (c == null) {
+                continue;
+            }
+            if (c.isOnline()) {
+                demand -= c.countIdle();
+            } else if (c.isConnecting()) {
+                demand -= node.getNumExecutors();
+            } else if (isCandidate(node)) {
+                candidates.add((VirtualMachineSlave) node);
+            }
+        }
+
+        for (VirtualMachineSlave slave : candidates) {
+            if (demand <= 0) {
+                break;
+            }
+            if (start(slave)) {
+                LOGGER.log(Level.INFO, "Starting " + slave.getNodeName() + " ahead of time for " + item.task.getFullDisplayName() + ".");
+                prestarted.computeIfAbsent(item.getId(), id -> ConcurrentHashMap.newKeySet()).add(slave.getNodeName());
+                demand -= slave.getNumExecutors();
+            }
+        }
+    }
+
+    /**
+     * Connects an offline agent unless its hypervisor is at its online
+     * capacity or boot limit.
+     *
+     * @param slave the agent to start
+     * @return true if the agent is being started
+     */
+    static boolean start(VirtualMachineSlave slave) {
+        try {
+            VirtualMachineLauncher launcher = (VirtualMachineLauncher) slave.getLauncher();
+            Hypervisor hypervisor = launcher.findOurHypervisorInstance();
+            if (!hypervisor.canMarkVMOnline(slave.getNodeName(), slave.getVirtualMachineName())
+                || !hypervisor.hasBootCapacity()) {
+                return false;
+            }
+        } catch (VirtException e) {
+            return false;
+        }
+        Computer c = slave.toComputer();
+        if (c == null) {
+            return false;
+        }
+        c.connect(false);
+        return true;
+    }
+
+    /**
+     * Stops agents started ahead of time that neither picked up the item they
+     * were started for nor are needed by any other buildable item.
+     *
+     * @param nodeNames the agents started for an item that left the queue
+     */
+    void cancel(Set<String> nodeNames) {
+        Jenkins jenkins = Jenkins.get();
+        for (String nodeName : nodeNames) {
+            Node node = jenkins.getNode(nodeName);
+            Computer c = node == null ? null : node.toComputer();
+            if (c == null || !c.isIdle() || (c.isOffline() && !c.isConnecting())) {
+                continue;
+            }
+            boolean needed = false;
+            for (Queue.BuildableItem other : Queue.getInstance().getBuildableItems()) {
+                if (canTake(node, other)) {
+                    needed = true;
+                    break;
+                }
+            }
+            if (!needed) {
+                LOGGER.log(Level.INFO, "Item went elsewhere, stopping " + nodeName + " again.");
+                c.disconnect(new OfflineCause.ByCLI("Started ahead of time for an item that went elsewhere."));
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package hudson.plugins.libvirt;
+
+import hudson.model.Run;
+
+import jenkins.model.RunAction2;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * What the domain of a libvirt agent used while a build ran on it, taken
+ * from the {@link DomainStatsCollector} of its hypervisor: totals, a short
+ * summary and a compact time series of at most {@link #POINTS} points.
+ * Shown on the build page and exported through the REST API. The samples of
+ * a domain cover the last {@link DomainStats#SAMPLES} collection intervals
+ * only, the profile of a longer build says how much of it is missing.
+ */
+@ExportedBean
+public class ResourceProfileAction implements RunAction2 {
+
+    static final int POINTS = 60;
+    /** Share of its vCPUs a domain has to use to count as saturated. */
+    static final double SATURATION = 0.9;
+    private static final double MIB = 1024.0 * 1024.0;
+
+    private final String virtualMachineName;
+    private final int vcpus;
+    private final long started;
+
+    private long durationMs;
+    /** Time from the start of the build to its first sample still kept. */
+    private long unsampledMs;
+    private long cpuTimeNs;
+    private long saturatedMs;
+    private long bytesRead;
+    private long bytesWritten;
+    private long bytesReceived;
+    private long bytesSent;
+    private long peakMemory;
+
+    /** Seconds since the start of the build, and the usage in the interval ending then. */
+    private int[] offsets = new int[0];
+    private int[] cpuPercent = new int[0];
+    private int[] readKBps = new int[0];
+    private int[] writeKBps = new int[0];
+    private int[] receiveKBps = new int[0];
+    private int[] sendKBps = new int[0];
+
+    private transient Run<?, ?> run;
+
+    public ResourceProfileAction(String virtualMachineName, int vcpus, long started) {
+        this.virtualMachineName = virtualMachineName;
+        this.vcpus = Math.max(1, vcpus);
+        this.started = started;
+    }
+
+    /**
+     * Fills in the profile from the samples of the domain during the build.
+     *
+     * @param samples the output of {@link DomainStats#since(long)} for the start of the build
+     */
+    void finish(long[][] samples) {
+        long[] times = samples[0];
+        if (times.length > 0) {
+            unsampledMs = Math.max(0, times[0] - started);
+        }
+        int intervals = times.length - 1;
+        if (intervals < 1) {
+            return;
+        }
+        durationMs = times[intervals] - times[0];
+        int points = Math.min(POINTS, intervals);
+        long[] bucketMs = new long[points];
+        long[][] bucketGrowth = new long[DomainStats.METRICS][points];
+        for (int i = 1; i <= intervals; i++) {
+            int bucket = (i - 1) * points / intervals;
+            long ms = times[i] - times[i - 1];
+            bucketMs[bucket] += ms;
+            for (int metric = 0; metric < DomainStats.METRICS; metric++) {
+                long[] row = samples[metric + 1];
+                // a counter going backwards means the domain restarted
+                long delta = row[i] >= row[i - 1] ? row[i] - row[i - 1] : row[i];
+                bucketGrowth[metric][bucket] += delta;
+            }
+            long cpu = samples[DomainStats.CPU_TIME + 1][i] - samples[DomainStats.CPU_TIME + 1][i - 1];
+            if (ms > 0 && cpu >= SATURATION * vcpus * ms * 1000000L) {
+                saturatedMs += ms;
+            }
+            peakMemory = Math.max(peakMemory, samples[DomainStats.MEMORY + 1][i]);
+        }
+        offsets = new int[points];
+        cpuPercent = new int[points];
+        readKBps = new int[points];
+        writeKBps = new int[points];
+        receiveKBps = new int[points];
+        sendKBps = new int[points];
+        long elapsed = times[0] - started;
+        for (int b = 0; b < points; b++) {
+            elapsed += bucketMs[b];
+            offsets[b] = (int) (elapsed / 1000);
+            long ms = Math.max(1, bucketMs[b]);
+            cpuPercent[b] = (int) (bucketGrowth[DomainStats.CPU_TIME][b] / 10000L / ms / vcpus);
+            readKBps[b] = (int) (bucketGrowth[DomainStats.BLOCK_READ][b] * 1000 / 1024 / ms);
+            writeKBps[b] = (int) (bucketGrowth[DomainStats.BLOCK_WRITE][b] * 1000 / 1024 / ms);
+            receiveKBps[b] = (int) (bucketGrowth[DomainStats.NET_RX][b] * 1000 / 1024 / ms);
+            sendKBps[b] = (int) (bucketGrowth[DomainStats.NET_TX][b] * 1000 / 1024 / ms);
+            cpuTimeNs += bucketGrowth[DomainStats.CPU_TIME][b];
+            bytesRead += bucketGrowth[DomainStats.BLOCK_READ][b];
+            bytesWritten += bucketGrowth[DomainStats.BLOCK_WRITE][b];
+            bytesReceived += bucketGrowth[DomainStats.NET_RX][b];
+            bytesSent += bucketGrowth[DomainStats.NET_TX][b];
+        }
+    }
+
+    @Exported
+    public String getVirtualMachineName() {
+        return virtualMachineName;
+    }
+
+    @Exported
+    public int getVcpus() {
+        return vcpus;
+    }
+
+    /**
+     * @return milliseconds covered by samples, 0 if the build was too short to sample
+     */
+    @Exported
+    public long getSampledMs() {
+        return durationMs;
+    }
+
+    /**
+     * @return milliseconds at the start of the build whose samples were no
+     *         longer kept when the build completed
+     */
+    @Exported
+    public long getUnsampledMs() {
+        return unsampledMs;
+    }
+
+    /**
+     * @return true if the profile misses the start of the build, more than
+     *         a collection interval can explain
+     */
+    public boolean isTruncated() {
+        return unsampledMs > 2 * DomainStatsCollection.INTERVAL_MS;
+    }
+
+    /**
+     * @return the start of the build missing from the profile, in whole minutes
+     */
+    public long getUnsampledMinutes() {
+        return TimeUnit.MILLISECONDS.toMinutes(unsampledMs);
+    }
+
+    @Exported
+    public double getCpuSeconds() {
+        return cpuTimeNs / 1e9;
+    }
+
+    /**
+     * @return the average share of its vCPUs the domain used, in percent
+     */
+    @Exported
+    public int getCpuUtilization() {
+        return durationMs == 0 ? 0 : (int) (cpuTimeNs / 10000L / durationMs / vcpus);
+    }
+
+    /**
+     * @return the share of the build the domain kept nearly all its vCPUs
+     *         busy, in percent; high values suggest the build was CPU-starved
+     */
+    @Exported
+    public int getCpuSaturation() {
+        return durationMs == 0 ? 0 : (int) (saturatedMs * 100 / durationMs);
+    }
+
+    @Exported
+    public double getMbRead() {
+        return bytesRead / MIB;
+    }
+
+    @Exported
+    public double getMbWritten() {
+        return bytesWritten / MIB;
+    }
+
+    @Exported
+    public double getMbReceived() {
+        return bytesReceived / MIB;
+    }
+
+    @Exported
+    public double getMbSent() {
+        return bytesSent / MIB;
+    }
+
+    @Exported
+    public double getPeakMemoryMb() {
+        return peakMemory / MIB;
+    }
+
+    @Exported
+    public int[] getOffsets() {
+        return offsets.clone();
+    }
+
+    @Exported
+    public int[] getCpuPercent() {
+        return cpuPercent.clone();
+    }
+
+    @Exported
+    public int[] getReadKBps() {
+        return readKBps.clone();
+    }
+
+    @Exported
+    public int[] getWriteKBps() {
+        return writeKBps.clone();
+    }
+
+    @Exported
+    public int[] getReceiveKBps() {
+        return receiveKBps.clone();
+    }
+
+    @Exported
+    public int[] getSendKBps() {
+        return sendKBps.clone();
+    }
+
+    /**
+     * @return the value with one decimal, for the pages
+     */
+    public String format(double value) {
+        return String.format("%.1f", value);
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        run = r;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "VM Resources";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "vmResources";
+    }
+}
@@ -0,0 +1,89 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.slaves.ComputerLauncher;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Attaches a {@link ResourceProfileAction} to builds that run on a libvirt
+ * agent and completes it from the collected domain statistics when the
+ * build is done. The domain is sampled once more at start and end, so that
+ * builds shorter than the collection interval get a profile too.
+ * Only builds whose own executor is on the agent, e.g. freestyle builds, are
+ * profiled: a Pipeline run executes on the built-in node and reaches agents
+ * through its node steps, which this listener does not follow.
+ */
+@Extension
+public class ResourceProfileListener extends RunListener<Run<?, ?>> {
+
+    private static final Logger LOGGER = Logger.getLogger(ResourceProfileListener.class.getName());
+
+    @Override
+    public void onStarted(Run<?, ?> run, TaskListener listener) {
+        VirtualMachineLauncher launcher = launcherOf(run);
+        if (launcher == null || !LibvirtConfiguration.isCollectingDomainStats()) {
+            return;
+        }
+        try {
+            Hypervisor hypervisor = launcher.findOurHypervisorInstance();
+            IDomain domain = hypervisor.getDomain(launcher.getVirtualMachineName());
+            if (domain == null) {
+                return;
+            }
+            long started = System.currentTimeMillis();
+            hypervisor.getStatsCollector().collect(launcher.getVirtualMachineName(), domain);
+            run.addAction(new ResourceProfileAction(launcher.getVirtualMachineName(), domain.getVcpuCount(), started));
+        } catch (VirtException e) {
+            LOGGER.log(Level.FINE, "Cannot profile " + run + ": " + e);
+        }
+    }
+
+    @Override
+    public void onCompleted(Run<?, ?> run, TaskListener listener) {
+        ResourceProfileAction action = run.getAction(ResourceProfileAction.class);
+        VirtualMachineLauncher launcher = launcherOf(run);
+        if (action == null || launcher == null) {
+            return;
+        }
+        try {
+            Hypervisor hypervisor = launcher.findOurHypervisorInstance();
+            IDomain domain = hypervisor.getDomain(action.getVirtualMachineName());
+            DomainStatsCollector collector = hypervisor.getStatsCollector();
+            if (domain != null) {
+                collector.collect(action.getVirtualMachineName(), domain);
+            }
+            DomainStats stats = collector.get(action.getVirtualMachineName());
+            if (stats != null) {
+                action.finish(stats.since(run.getStartTimeInMillis()));
+                run.save();
+            }
+        } catch (VirtException | IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot complete the resource profile of " + run + ": " + e);
+        }
+    }
+
+    /**
+     * @return the launcher of the libvirt agent the run executes on, null for
+     *         other agents and for Pipeline runs, whose executor is a
+     *         flyweight one on the built-in node
+     */
+    private static VirtualMachineLauncher launcherOf(Run<?, ?> run) {
+        Executor executor = run.getExecutor();
+        Computer computer = executor == null ? null : executor.getOwner();
+        if (!(computer instanceof VirtualMachineSlaveComputer)) {
+            return null;
+        }
+        ComputerLauncher launcher = ((VirtualMachineSlaveComputer) computer).getLauncher();
+        return launcher instanceof VirtualMachineLauncher ? (VirtualMachineLauncher) launcher : null;
+    }
+}
@@ -0,0 +1,31 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.DescriptorVisibilityFilter;
+
+/**
+ * Offers the retention strategies of this plugin only for the agents they
+ * are written for: they work on {@link VirtualMachineSlaveComputer} and
+ * would fail on any other computer.
+ */
+@Extension
+public class RetentionStrategyFilter extends DescriptorVisibilityFilter {
+
+    @Override
+    public boolean filter(Object context, Descriptor descriptor) {
+        return context == null || filterType(context.getClass(), descriptor);
+    }
+
+    @Override
+    public boolean filterType(Class<?> contextClass, Descriptor descriptor) {
+        if (descriptor instanceof EphemeralRetentionStrategy.DescriptorImpl) {
+            return EphemeralVirtualMachineSlave.class.isAssignableFrom(contextClass);
+        }
+        if (descriptor instanceof VirtualMachineRetentionStrategy.DescriptorImpl) {
+            return VirtualMachineSlave.class.isAssignableFrom(contextClass)
+                   && !EphemeralVirtualMachineSlave.class.isAssignableFrom(contextClass);
+        }
+        return true;
+    }
+}
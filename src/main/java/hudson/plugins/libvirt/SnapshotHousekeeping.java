@@ -0,0 +1,166 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.IDomainSnapshot;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.slaves.Cloud;
+
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Inventories the snapshots of the agent domains on hypervisors with
+ * housekeeping enabled and reports, or deletes, those that no agent, job or
+ * queued build refers to and that are older than the retention period.
+ * Domains that back no agent, directly or through a cluster, are left
+ * alone. Long snapshot chains make reverts slow. The run backs off while
+ * domains are booting on the hypervisor, so that it never slows launches
+ * down.
+ */
+@Extension
+public class SnapshotHousekeeping extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(SnapshotHousekeeping.class.getName());
+    private static final long PAUSE_BETWEEN_DELETES_MS = TimeUnit.SECONDS.toMillis(5);
+
+    public SnapshotHousekeeping() {
+        super("Libvirt snapshot housekeeping");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return HOUR;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws InterruptedException {
+        Set<String> jobSnapshots = new HashSet<>();
+        for (Job<?, ?> job : Jenkins.get().getAllItems(Job.class)) {
+            jobSnapshots.addAll(SnapshotSelection.requestableSnapshots(job));
+        }
+        for (Queue.Item item : Jenkins.get().getQueue().getItems()) {
+            String requested = SnapshotSelection.requiredSnapshot(item);
+            if (requested != null) {
+                jobSnapshots.add(requested);
+            }
+        }
+        List<VirtualMachineSlave> slaves = new ArrayList<>();
+        for (Node node : Jenkins.get().getNodes()) {
+            if (node instanceof VirtualMachineSlave && !(node instanceof EphemeralVirtualMachineSlave)) {
+                slaves.add((VirtualMachineSlave) node);
+            }
+        }
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (cloud instanceof Hypervisor && !"off".equals(((Hypervisor) cloud).getSnapshotHousekeeping())) {
+                Hypervisor hypervisor = (Hypervisor) cloud;
+                housekeep(hypervisor, referencedSnapshots(hypervisor, slaves), jobSnapshots);
+            }
+        }
+    }
+
+    /**
+     * @return true if the domain of the agent is defined on the hypervisor,
+     *         directly or as a member of the cluster of the agent
+     */
+    private static boolean isBackedBy(VirtualMachineSlave slave, Hypervisor hypervisor) {
+        if (hypervisor.getHypervisorDescription().equals(slave.getHypervisorDescription())) {
+            return true;
+        }
+        HypervisorCluster cluster = HypervisorCluster.find(slave.getClusterName());
+        return cluster != null && cluster.getMembers().contains(hypervisor);
+    }
+
+    private static Map<String, Set<String>> referencedSnapshots(Hypervisor hypervisor, List<VirtualMachineSlave> slaves) {
+        List<VirtualMachineSlave> backed = new ArrayList<>();
+        for (VirtualMachineSlave slave : slaves) {
+            if (isBackedBy(slave, hypervisor)) {
+                backed.add(slave);
+            }
+        }
+        Map<String, Set<String>> referenced = new HashMap<>();
+        for (VirtualMachineSlave slave : backed) {
+            referenced.computeIfAbsent(slave.getVirtualMachineName(), vm -> new HashSet<>());
+            if (slave.getSnapshotName() != null) {
+                referenced.get(slave.getVirtualMachineName()).add(slave.getSnapshotName());
+            }
+        }
+        return referenced;
+    }
+
+    /**
+     * @param vm           the domain
+     * @param referenced   the snapshots agents use, by the domain backing them; domains
+     *                     not in the map back no agent
+     * @param jobSnapshots the snapshots any job or queued build can ask for
+     * @return the snapshots that must be kept, null if the domain is not managed at all
+     */
+    static Set<String> keep(String vm, Map<String, Set<String>> referenced, Set<String> jobSnapshots) {
+        Set<String> own = referenced.get(vm);
+        if (own == null) {
+            return null;
+        }
+        Set<String> keep = new HashSet<>(own);
+        keep.addAll(jobSnapshots);
+        return keep;
+    }
+
+    private void housekeep(Hypervisor hypervisor, Map<String, Set<String>> referenced, Set<String> jobSnapshots)
+            throws InterruptedException {
+        boolean delete = "delete".equals(hypervisor.getSnapshotHousekeeping());
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(hypervisor.getSnapshotRetentionDays());
+        Map<String, List<String>> stale = new HashMap<>();
+        try {
+            for (IDomain domain : hypervisor.getDomains().values()) {
+                if (hypervisor.getBootsInFlight() > 0) {
+                    LOGGER.log(Level.FINE, "Domains are booting on " + hypervisor.getHypervisorHost() + ", postponing housekeeping.");
+                    return;
+                }
+                String vm = domain.getName();
+                Set<String> keep = keep(vm, referenced, jobSnapshots);
+                if (keep == null) {
+                    // not ours to clean up
+                    continue;
+                }
+                List<String> found = new ArrayList<>();
+                for (String name : domain.snapshotListNames()) {
+                    if (keep.contains(name)) {
+                        continue;
+                    }
+                    IDomainSnapshot snapshot = domain.snapshotLookupByName(name);
+                    if (snapshot.isCurrent() || snapshot.getCreationTime() >= cutoff) {
+                        continue;
+                    }
+                    if (delete && hypervisor.getBootsInFlight() == 0) {
+                        LOGGER.log(Level.INFO, "Deleting stale snapshot " + name + " of " + vm + ".");
+                        snapshot.delete();
+                        Thread.sleep(PAUSE_BETWEEN_DELETES_MS);
+                    } else {
+                        found.add(name);
+                    }
+                }
+                if (!found.isEmpty()) {
+                    LOGGER.log(Level.INFO, vm + " has " + found.size() + " stale snapshots: " + found);
+                    stale.put(vm, found);
+                }
+            }
+        } catch (VirtException e) {
+            LOGGER.log(Level.WARNING, "Snapshot housekeeping on " + hypervisor.getHypervisorHost() + " failed: " + e);
+        }
+        hypervisor.setStaleSnapshots(stale);
+    }
+}
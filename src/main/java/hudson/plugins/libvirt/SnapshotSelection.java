@@ -0,0 +1,120 @@
+package hudson.plugins.libvirt;
+
+import hudson.Util;
+import hudson.model.ChoiceParameterDefinition;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.Queue;
+import hudson.model.StringParameterValue;
+import hudson.plugins.libvirt.lib.VirtException;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Resolves which snapshot a queued job wants its agent reverted to.
+ */
+public final class SnapshotSelection {
+
+    public static final String PARAMETER_NAME = "LIBVIRT_SNAPSHOT";
+
+    private SnapshotSelection() {
+      //not called
+    }
+
+    /**
+     * @param task the queued task
+     * @return the snapshot named by the job property of the task, null if none
+     */
+    public static String requiredSnapshot(Queue.Task task) {
+        Queue.Task owner = task.getOwnerTask();
+        if (!(owner instanceof Job)) {
+            return null;
+        }
+        BeforeJobSnapshotJobProperty property = ((Job<?, ?>) owner).getProperty(BeforeJobSnapshotJobProperty.class);
+        return property == null ? null : Util.fixEmptyAndTrim(property.getSnapshotName());
+    }
+
+    /**
+     * @param item the queued item
+     * @return the snapshot named by the build parameter, else by the job property, null if none
+     */
+    public static String requiredSnapshot(Queue.Item item) {
+        String parameter = null;
+        ParametersAction parameters = item.getAction(ParametersAction.class);
+        if (parameters != null) {
+            ParameterValue value = parameters.getParameter(PARAMETER_NAME);
+            if (value instanceof StringParameterValue) {
+                parameter = ((StringParameterValue) value).getValue();
+            }
+        }
+        return choose(parameter, requiredSnapshot(item.task));
+    }
+
+    /**
+     * @return the snapshot of the build parameter if set, else that of the job property
+     */
+    static String choose(String parameter, String property) {
+        String name = Util.fixEmptyAndTrim(parameter);
+        return name != null ? name : property;
+    }
+
+    /**
+     * @param job the job
+     * @return every snapshot the job can ask for through its property or
+     *         the choices and default of its snapshot parameter
+     */
+    public static Set<String> requestableSnapshots(Job<?, ?> job) {
+        Set<String> names = new HashSet<>();
+        BeforeJobSnapshotJobProperty property = job.getProperty(BeforeJobSnapshotJobProperty.class);
+        if (property != null && Util.fixEmptyAndTrim(property.getSnapshotName()) != null) {
+            names.add(property.getSnapshotName().trim());
+        }
+        names.addAll(parameterSnapshots(job.getProperty(ParametersDefinitionProperty.class)));
+        return names;
+    }
+
+    /**
+     * @param parameters the parameter definitions of a job, may be null
+     * @return the choices, else the default, of the snapshot parameter
+     */
+    static Set<String> parameterSnapshots(ParametersDefinitionProperty parameters) {
+        Set<String> names = new HashSet<>();
+        ParameterDefinition definition = parameters == null ? null : parameters.getParameterDefinition(PARAMETER_NAME);
+        if (definition instanceof ChoiceParameterDefinition) {
+            for (String choice : ((ChoiceParameterDefinition) definition).getChoices()) {
+                if (Util.fixEmptyAndTrim(choice) != null) {
+                    names.add(choice.trim());
+                }
+            }
+        } else if (definition != null) {
+            ParameterValue value = definition.getDefaultParameterValue();
+            if (value instanceof StringParameterValue && Util.fixEmptyAndTrim(((StringParameterValue) value).getValue()) != null) {
+                names.add(((StringParameterValue) value).getValue().trim());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Answers from the snapshot cache of the hypervisor only, so that it is
+     * safe to call while holding the queue lock.
+     *
+     * @param slave    the agent
+     * @param snapshot the snapshot name
+     * @return true if the domain of the agent has the snapshot, null if not known yet
+     */
+    public static Boolean isAvailable(VirtualMachineSlave slave, String snapshot) {
+        try {
+            Hypervisor hypervisor = ((VirtualMachineLauncher) slave.getLauncher()).findOurHypervisorInstance();
+            String[] names = hypervisor.getCachedSnapshots(slave.getVirtualMachineName());
+            return names == null ? null : Arrays.asList(names).contains(snapshot);
+        } catch (VirtException e) {
+            return false;
+        }
+    }
+}
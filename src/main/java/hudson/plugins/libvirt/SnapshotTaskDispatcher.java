@@ -0,0 +1,96 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import jenkins.model.Jenkins;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps jobs that asked for a snapshot off agents that are not freshly
+ * reverted to it. For every such item a single idle, online agent that has
+ * the snapshot is picked and restarted, its launch reverting the domain
+ * before it boots; the item then goes to that agent, or to any other that
+ * happens to be fresh first. No other item starts on an agent while it is
+ * being restarted.
+ * Only in-memory state and the snapshot cache of the hypervisors are read
+ * here, never libvirt itself, as this runs under the queue lock.
+ */
+@Extension
+public class SnapshotTaskDispatcher extends QueueTaskDispatcher {
+
+    /** The agent picked to be reverted, by queue item id. */
+    private static final Map<Long, String> PICKED = new ConcurrentHashMap<>();
+
+    @Override
+    public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        if (!(node instanceof VirtualMachineSlave) || node instanceof EphemeralVirtualMachineSlave) {
+            return null;
+        }
+        if (!(node.toComputer() instanceof VirtualMachineSlaveComputer)) {
+            return null;
+        }
+        VirtualMachineSlaveComputer c = (VirtualMachineSlaveComputer) node.toComputer();
+        String snapshot = SnapshotSelection.requiredSnapshot(item);
+        if (snapshot == null) {
+            // nothing may start on an agent about to be restarted for another item
+            return c.isReverting() ? CauseOfBlockage.fromMessage(Messages._AgentReverting(node.getNodeName())) : null;
+        }
+        if (c.getChannel() == null) {
+            // an offline agent offers no executor; whether it suits is decided once it is up
+            return null;
+        }
+        if (snapshot.equals(c.getFreshSnapshot()) && !c.isReverting()) {
+            return null;
+        }
+        Boolean available = SnapshotSelection.isAvailable((VirtualMachineSlave) node, snapshot);
+        if (available == null) {
+            return CauseOfBlockage.fromMessage(Messages._CheckingSnapshots(node.getNodeName(), snapshot));
+        }
+        if (!available) {
+            return CauseOfBlockage.fromMessage(Messages._SnapshotNotAvailable(node.getNodeName(), snapshot));
+        }
+        String picked = PICKED.get(item.getId());
+        if (picked != null && !isStillReverting(picked, snapshot)) {
+            // the picked agent went away or its revert failed
+            PICKED.remove(item.getId(), picked);
+            picked = null;
+        }
+        if (picked == null && c.isIdle() && !c.isReverting()) {
+            PICKED.put(item.getId(), node.getNodeName());
+            // only requests the restart, the revert happens in the launch
+            c.revertForJob(snapshot);
+            return CauseOfBlockage.fromMessage(Messages._RevertingToSnapshot(node.getNodeName(), snapshot));
+        }
+        return CauseOfBlockage.fromMessage(Messages._WaitingForRevert(picked != null ? picked : node.getNodeName(), snapshot));
+    }
+
+    private static boolean isStillReverting(String nodeName, String snapshot) {
+        Node node = Jenkins.get().getNode(nodeName);
+        Computer computer = node == null ? null : node.toComputer();
+        if (!(computer instanceof VirtualMachineSlaveComputer)) {
+            return false;
+        }
+        VirtualMachineSlaveComputer c = (VirtualMachineSlaveComputer) computer;
+        return c.isReverting() || snapshot.equals(c.getFreshSnapshot());
+    }
+
+    /**
+     * Forgets the picked agent once the item left the queue.
+     */
+    @Extension
+    public static final class PickCleaner extends QueueListener {
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            PICKED.remove(li.getId());
+        }
+    }
+}
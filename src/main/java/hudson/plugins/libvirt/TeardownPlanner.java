@@ -0,0 +1,118 @@
+package hudson.plugins.libvirt;
+
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Picks the way to stop the domain of an agent from its shutdown method. A
+ * domain that is reset to a pristine state after every task holds nothing
+ * worth a graceful guest shutdown, so agents can opt into destroying it.
+ */
+public final class TeardownPlanner {
+
+    private static final Logger LOGGER = Logger.getLogger(TeardownPlanner.class.getName());
+    private static final long POLL_MS = 1000L;
+
+    public enum Action {
+        /** Pull the plug. */
+        DESTROY,
+        /** Pause the domain, keeping its memory. */
+        SUSPEND,
+        /** Save the memory of the domain to disk and stop it, the next start restores it. */
+        MANAGED_SAVE,
+        /** Ask the guest to shut down and do not wait for it. */
+        SHUTDOWN,
+        /** Ask the guest to shut down and destroy it once the deadline passed. */
+        SHUTDOWN_THEN_DESTROY
+    }
+
+    private TeardownPlanner() {
+      //not called
+    }
+
+    public static Action plan(VirtualMachineSlave slave) {
+        return plan(slave.isRecycleEnabled() && slave.getDestroyOnRecycle(), slave.getShutdownMethod(),
+                    slave.getShutdownTimeoutSeconds());
+    }
+
+    /**
+     * @param destroyRecycled whether the agent is recycled and opted into destroying its domain
+     * @param shutdownMethod  the configured shutdown method
+     * @param timeoutSeconds  seconds to wait for a graceful shutdown, 0 to not wait
+     * @return how to stop the domain
+     */
+    static Action plan(boolean destroyRecycled, String shutdownMethod, int timeoutSeconds) {
+        if (destroyRecycled) {
+            return Action.DESTROY;
+        }
+        if ("suspend".equals(shutdownMethod)) {
+            return Action.SUSPEND;
+        }
+        if ("destroy".equals(shutdownMethod)) {
+            return Action.DESTROY;
+        }
+        if (timeoutSeconds > 0) {
+            return Action.SHUTDOWN_THEN_DESTROY;
+        }
+        return Action.SHUTDOWN;
+    }
+
+    /**
+     * Stops a running domain the way {@link #plan(VirtualMachineSlave)}
+     * decided, blocking until the deadline of a graceful shutdown if any.
+     *
+     * @param slave  the agent the domain belongs to
+     * @param domain the domain to stop
+     * @return the action taken
+     * @throws VirtException        if libvirt fails to stop the domain
+     * @throws InterruptedException if interrupted while waiting for the guest
+     */
+    public static Action execute(VirtualMachineSlave slave, IDomain domain) throws VirtException, InterruptedException {
+        return execute(slave, domain, plan(slave));
+    }
+
+    /**
+     * Stops a running domain by the given action.
+     *
+     * @param slave  the agent the domain belongs to
+     * @param domain the domain to stop
+     * @param action how to stop it
+     * @return the action taken
+     * @throws VirtException        if libvirt fails to stop the domain
+     * @throws InterruptedException if interrupted while waiting for the guest
+     */
+    public static Action execute(VirtualMachineSlave slave, IDomain domain, Action action) throws VirtException, InterruptedException {
+        LOGGER.log(Level.INFO, "Stopping " + slave.getVirtualMachineName() + " by " + action + ".");
+        switch (action) {
+            case DESTROY:
+                domain.destroy();
+                break;
+            case SUSPEND:
+                domain.suspend();
+                break;
+            case MANAGED_SAVE:
+                domain.managedSave();
+                break;
+            case SHUTDOWN:
+                domain.shutdown();
+                break;
+            default:
+                domain.shutdown();
+                long deadline = System.currentTimeMillis() + slave.getShutdownTimeoutSeconds() * 1000L;
+                while (!domain.isNotBlockedAndNotRunning()) {
+                    if (System.currentTimeMillis() >= deadline) {
+                        LOGGER.log(Level.WARNING, slave.getVirtualMachineName() + " did not shut down within "
+                                                  + slave.getShutdownTimeoutSeconds() + " seconds, destroying it.");
+                        domain.destroy();
+                        break;
+                    }
+                    Thread.sleep(POLL_MS);
+                }
+                break;
+        }
+        return action;
+    }
+}
@@ -38,6 +38,7 @@ public class VirtualMachineLauncher extends ComputerLauncher {
 
     private static final Logger LOGGER = Logger.getLogger(VirtualMachineLauncher.class.getName());
     private static final int MSEC_PER_SEC = 1000;
+    private static final long MIN_RETRY_WAIT_MS = 1000L;
 
     private final ComputerLauncher delegate;
     private transient VirtualMachine virtualMachine;
@@ -46,6 +47,12 @@ public class VirtualMachineLauncher extends ComputerLauncher {
     private final String snapshotName;
     private final int waitTimeMs;
 
+    /**
+     * Hypervisor of a cluster the domain was last placed on, null to use the
+     * configured one.
+     */
+    private transient volatile String activeHypervisorDescription;
+
     public int getWaitTimeMs() {
         return waitTimeMs;
     }
@@ -68,6 +75,22 @@ public class VirtualMachineLauncher extends ComputerLauncher {
         lookupVirtualMachineHandle();
     }
 
+    /**
+     * Moves the agent to another hypervisor of its cluster.
+     *
+     * @param hypervisor the hypervisor the domain is started on from now on
+     */
+    public void setActiveHypervisor(Hypervisor hypervisor) {
+        activeHypervisorDescription = hypervisor.getHypervisorDescription();
+        virtualMachine = null;
+        lookupVirtualMachineHandle();
+    }
+
+    private String getActiveHypervisorDescription() {
+        String active = activeHypervisorDescription;
+        return active != null ? active : hypervisorDescription;
+    }
+
     private void lookupVirtualMachineHandle() {
         if (hypervisorDescription != null && virtualMachineName != null) {
             LOGGER.log(Level.FINE, "Grabbing hypervisor...");
@@ -109,7 +132,7 @@ public class VirtualMachineLauncher extends ComputerLauncher {
     public Hypervisor findOurHypervisorInstance() throws VirtException {
         if (hypervisorDescription != null && virtualMachineName != null) {
             for (Cloud cloud : Jenkins.get().clouds) {
-                if (cloud instanceof Hypervisor && ((Hypervisor) cloud).getHypervisorDescription().equals(hypervisorDescription)) {
+                if (cloud instanceof Hypervisor && ((Hypervisor) cloud).getHypervisorDescription().equals(getActiveHypervisorDescription())) {
                     return (Hypervisor) cloud;
                 }
             }
@@ -120,7 +143,12 @@ public class VirtualMachineLauncher extends ComputerLauncher {
 
     @Override
     public void launch(SlaveComputer slaveComputer, TaskListener taskListener) throws IOException, InterruptedException {
+        Hypervisor booting = null;
+        long bootStarted = 0;
 
+        if (slaveComputer instanceof VirtualMachineSlaveComputer) {
+            ((VirtualMachineSlaveComputer) slaveComputer).awaitTeardown(taskListener);
+        }
         taskListener.getLogger().println("Virtual machine \"" + virtualMachineName + "\" (agent title \"" + slaveComputer.getDisplayName() + "\") is to be started.");
         try {
             if (virtualMachine == null) {
@@ -133,35 +161,61 @@ public class VirtualMachineLauncher extends ComputerLauncher {
 
             Map<String, IDomain> computers = virtualMachine.getHypervisor().getDomains();
             IDomain domain = computers.get(virtualMachine.getName());
-            long waitTime = 3000L;
             if (domain != null) {
-                if (domain.isRunningOrBlocked()) {
-                    domain.shutdown();
-                    // make sure the domain is off when we call domain.create() bellow.
-                    while (true) {
-                        if (!domain.isNotBlockedAndNotRunning()) {
-                            domain.shutdown();
-                            taskListener.getLogger().printf("Domain is still running, let's wait for %d more seconds\n", waitTime / 1000);
-                            Thread.sleep(waitTime);
-                        } else {
-                            break;
-                        }
+                if (slaveComputer instanceof VirtualMachineSlaveComputer) {
+                    ((VirtualMachineSlaveComputer) slaveComputer).revertForLaunch(virtualMachine.getHypervisor(), domain, taskListener);
+                }
+                boolean runningAfterRevert = slaveComputer instanceof VirtualMachineSlaveComputer
+                        && ((VirtualMachineSlaveComputer) slaveComputer).takeRunningAfterRevert();
+                if (slaveComputer instanceof VirtualMachineSlaveComputer) {
+                    ((VirtualMachineSlaveComputer) slaveComputer).unpark();
+                }
+                if (runningAfterRevert && domain.isRunningOrBlocked()) {
+                    taskListener.getLogger().println("Domain is already running from the reverted snapshot, skipping boot.");
+                } else if (domain.isPaused()) {
+                    taskListener.getLogger().println("Domain is paused, resuming it.");
+                    domain.resume();
+                } else if (slaveComputer.getNode() instanceof EphemeralVirtualMachineSlave) {
+                    // transient domains are started when the agent is provisioned and vanish once stopped
+                    taskListener.getLogger().println("Ephemeral domain was started on provisioning, skipping boot.");
+                } else {
+                    Hypervisor hypervisor = virtualMachine.getHypervisor();
+                    if (!hypervisor.hasBootCapacity()) {
+                        taskListener.getLogger().println("Waiting for other domains on the hypervisor to finish booting.");
+                    }
+                    hypervisor.startBoot();
+                    booting = hypervisor;
+                    // a restore from a managed save is not a boot, keep it out of the boot times
+                    boolean restoring = domain.hasManagedSaveImage();
+                    startDomain(slaveComputer, domain, taskListener);
+                    if (!restoring) {
+                        bootStarted = System.currentTimeMillis();
                     }
                 }
-                try {
-                    domain.create();
-                } catch (VirtException e)
-                {
-                    taskListener.fatalError(e.getMessage(), e);
-
-                    LogRecord rec = new LogRecord(Level.SEVERE, "Error while launching {0} on Hypervisor {1}.");
-                    rec.setParameters(new Object[]{virtualMachine.getName(), virtualMachine.getHypervisor().getHypervisorURI()});
-                    rec.setThrown(e);
-                    LOGGER.log(rec);
-                    
-                    // wait and try one more time.
-                    Thread.sleep(waitTime * 2);
-                    domain.create();
+
+                applyNuma(slaveComputer, domain, taskListener);
+                applyQos(slaveComputer, domain, taskListener);
+                attachCacheDisk(slaveComputer, domain, taskListener);
+
+                // the node knows the current snapshot, ours is the one it was configured with
+                String bootSnapshot = slaveComputer.getNode() instanceof VirtualMachineSlave
+                        ? ((VirtualMachineSlave) slaveComputer.getNode()).getSnapshotName() : snapshotName;
+                BootTimeStatistics bootTimes = BootTimeStatistics.of(hypervisorDescription, virtualMachineName, bootSnapshot);
+                boolean tuned = bootStarted > 0 && bootTimes.isReliable();
+                long retryWaitMs = waitTimeMs;
+                long deadline = 0;
+                if (tuned) {
+                    // first probe when half of the recent boots were done, retries spread up to the slowest of them,
+                    // all within the configured wait time and overall budget
+                    long p50 = bootTimes.percentile(50);
+                    long p99 = bootTimes.percentile(99);
+                    long firstWaitMs = Math.min(p50, waitTimeMs);
+                    retryWaitMs = Math.max(MIN_RETRY_WAIT_MS, Math.min(waitTimeMs,
+                            (p99 - p50) / Math.max(1, timesToRetryOnFailure - 1)));
+                    deadline = bootStarted + Math.max((long) waitTimeMs * timesToRetryOnFailure, p99);
+                    taskListener.getLogger().println("Recent boots took " + p50 + "ms (median) to " + p99
+                            + "ms, first connection attempt in " + firstWaitMs + "ms.");
+                    Thread.sleep(firstWaitMs);
                 }
 
                 int attempts = 0;
@@ -184,15 +238,23 @@ public class VirtualMachineLauncher extends ComputerLauncher {
                     if (slaveComputer.isOnline()) {
                         taskListener.getLogger().println("slaveComputer is online");
                         taskListener.getLogger().flush();
+                        if (bootStarted > 0) {
+                            bootTimes.record(System.currentTimeMillis() - bootStarted);
+                        }
                         break;
-                    } else if (attempts >= timesToRetryOnFailure) {
+                    } else if (tuned ? System.currentTimeMillis() + retryWaitMs > deadline : attempts >= timesToRetryOnFailure) {
                         taskListener.getLogger().println("Maximum retries reached. Failed to start agent client.");
                         break;
                     }
 
-                    taskListener.getLogger().println("Not up yet, waiting for " + waitTimeMs + "ms more ("
-                            + attempts + "/" + timesToRetryOnFailure + " retries)...");
-                    Thread.sleep(waitTimeMs);
+                    if (tuned) {
+                        taskListener.getLogger().println("Not up yet, waiting for " + retryWaitMs + "ms more ("
+                                + attempts + " attempts)...");
+                    } else {
+                        taskListener.getLogger().println("Not up yet, waiting for " + retryWaitMs + "ms more ("
+                                + attempts + "/" + timesToRetryOnFailure + " retries)...");
+                    }
+                    Thread.sleep(retryWaitMs);
                 }
 
             } else {
@@ -213,6 +275,130 @@ public class VirtualMachineLauncher extends ComputerLauncher {
             rec.setParameters(new Object[]{virtualMachine.getName(), virtualMachine.getHypervisor().getHypervisorURI()});
             rec.setThrown(t);
             LOGGER.log(rec);
+        } finally {
+            if (booting != null) {
+                booting.finishBoot();
+            }
+        }
+    }
+
+    private void startDomain(SlaveComputer slaveComputer, IDomain domain, TaskListener taskListener) throws VirtException, InterruptedException {
+        long waitTime = 3000L;
+        if (domain.isRunningOrBlocked() && slaveComputer.getNode() instanceof VirtualMachineSlave
+            && TeardownPlanner.plan((VirtualMachineSlave) slaveComputer.getNode()) == TeardownPlanner.Action.DESTROY) {
+            taskListener.getLogger().println("Domain is running, destroying it before the start.");
+            domain.destroy();
+        }
+        if (domain.isRunningOrBlocked()) {
+            domain.shutdown();
+            // make sure the domain is off when we call domain.create() bellow.
+            while (true) {
+                if (!domain.isNotBlockedAndNotRunning()) {
+                    domain.shutdown();
+                    taskListener.getLogger().printf("Domain is still running, let's wait for %d more seconds\n", waitTime / 1000);
+                    Thread.sleep(waitTime);
+                } else {
+                    break;
+                }
+            }
+        }
+        try {
+            domain.create();
+        } catch (VirtException e)
+        {
+            taskListener.fatalError(e.getMessage(), e);
+
+            LogRecord rec = new LogRecord(Level.SEVERE, "Error while launching {0} on Hypervisor {1}.");
+            rec.setParameters(new Object[]{virtualMachine.getName(), virtualMachine.getHypervisor().getHypervisorURI()});
+            rec.setThrown(e);
+            LOGGER.log(rec);
+            
+            // wait and try one more time.
+            Thread.sleep(waitTime * 2);
+            domain.create();
+        }
+    }
+
+    /**
+     * Applies the QoS profile of the agent to the running domain, whichever
+     * way it came up. Builds still run without it.
+     */
+    private void applyQos(SlaveComputer slaveComputer, IDomain domain, TaskListener taskListener) {
+        if (!(slaveComputer.getNode() instanceof VirtualMachineSlave)) {
+            return;
+        }
+        QosProfile profile = QosProfile.forNode((VirtualMachineSlave) slaveComputer.getNode());
+        try {
+            if (profile != null) {
+                taskListener.getLogger().println("Applying QoS profile " + profile.getName() + ".");
+            }
+            QosProfile.applyTo(profile, domain);
+        } catch (VirtException e) {
+            taskListener.getLogger().println("Cannot apply the QoS profile, continuing without it: " + e.getMessage());
+            LOGGER.log(Level.WARNING, "Applying the QoS profile of " + virtualMachineName + " failed: " + e);
+        }
+    }
+
+    /**
+     * Hot-plugs the cache disk of the agent, if it has one, so that it is
+     * there when the agent connects. Builds still run without it.
+     */
+    private void attachCacheDisk(SlaveComputer slaveComputer, IDomain domain, TaskListener taskListener) {
+        if (!(slaveComputer.getNode() instanceof VirtualMachineSlave)
+            || slaveComputer.getNode() instanceof EphemeralVirtualMachineSlave) {
+            return;
+        }
+        CacheDisk cacheDisk = CacheDisk.forNode((VirtualMachineSlave) slaveComputer.getNode());
+        if (cacheDisk == null) {
+            return;
+        }
+        try {
+            cacheDisk.attach(virtualMachine.getHypervisor(), domain, taskListener);
+            virtualMachine.getHypervisor().getStatsCollector().forgetDevices(virtualMachineName);
+        } catch (VirtException e) {
+            taskListener.getLogger().println("Cannot attach the cache disk, continuing without it: " + e.getMessage());
+            LOGGER.log(Level.WARNING, "Attaching the cache disk of " + virtualMachineName + " failed: " + e);
+        }
+    }
+
+    /**
+     * Pins the running domain to a NUMA node of its hypervisor, whichever way
+     * it came up. The domain runs unpinned if that fails.
+     */
+    private void applyNuma(SlaveComputer slaveComputer, IDomain domain, TaskListener taskListener) {
+        if (!(slaveComputer.getNode() instanceof VirtualMachineSlave)) {
+            return;
+        }
+        Hypervisor hypervisor = virtualMachine.getHypervisor();
+        NumaPlacement numa = null;
+        int vcpus = 0;
+        try {
+            numa = hypervisor.getNumaPlacement();
+            if (numa == null || !numa.isNuma()) {
+                return;
+            }
+            vcpus = domain.getVcpuCount();
+            NumaPlacement.Placement placement = numa.place(virtualMachine.getName(), vcpus);
+            if (placement == null) {
+                taskListener.getLogger().println("No NUMA node of " + hypervisor.getHypervisorHost()
+                        + " has enough CPUs for this domain, leaving it unpinned.");
+                numa.unpin(domain, vcpus);
+            } else {
+                taskListener.getLogger().println("Pinning the domain to NUMA node " + placement.getCell()
+                        + ", CPUs " + placement.getCpuSet() + ".");
+                NumaPlacement.pin(domain, placement);
+            }
+        } catch (VirtException e) {
+            taskListener.getLogger().println("Cannot pin the domain, leaving it unpinned: " + e.getMessage());
+            LOGGER.log(Level.WARNING, "Pinning " + virtualMachineName + " failed: " + e);
+            if (numa != null) {
+                numa.release(virtualMachine.getName());
+                try {
+                    numa.unpin(domain, vcpus);
+                } catch (VirtException e2) {
+                    LOGGER.log(Level.FINE, "Cannot unpin " + virtualMachineName + ": " + e2);
+                }
+            }
         }
     }
 
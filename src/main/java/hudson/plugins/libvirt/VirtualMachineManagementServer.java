@@ -12,12 +12,15 @@ import jenkins.model.Jenkins;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.verb.POST;
 
 import javax.servlet.ServletException;
 
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -45,6 +48,46 @@ public class VirtualMachineManagementServer implements Describable<VirtualMachin
     }
 
 
+    /**
+     * @param domainName the name of the domain
+     * @return median and slowest of the recent snapshot reverts, empty if none
+     */
+    public String getRevertTimes(String domainName) {
+        BootTimeStatistics reverts = BootTimeStatistics.revertsOf(theCloud.getHypervisorDescription(), domainName);
+        if (reverts.percentile(50) < 0) {
+            return "";
+        }
+        return reverts.percentile(50) + " / " + reverts.percentile(99) + " ms";
+    }
+
+    public List<String> getStaleSnapshots(String domainName) {
+        return theCloud.getStaleSnapshots(domainName);
+    }
+
+    /**
+     * @return CPUs busy over the last minute and current memory of the domain, empty if not sampled
+     */
+    public String getUsage(String domainName) {
+        DomainStats stats = theCloud.getStatsCollector().get(domainName);
+        if (stats == null || stats.size() == 0) {
+            return "";
+        }
+        double cpus = stats.rate(DomainStats.CPU_TIME, TimeUnit.MINUTES.toMillis(1)) / TimeUnit.SECONDS.toNanos(1);
+        long memoryMiB = stats.latest(DomainStats.MEMORY) / (1024 * 1024);
+        return (cpus < 0 ? "" : String.format("%.1f CPUs, ", cpus)) + memoryMiB + " MiB";
+    }
+
+    /**
+     * @return the NUMA node and host CPUs the domain is pinned to, empty if it is not pinned
+     */
+    public String getNumaPin(String domainName) {
+        NumaPlacement.Placement placement = theCloud.getNumaPlacements().get(domainName);
+        if (placement == null) {
+            return "";
+        }
+        return "node " + placement.getCell() + ": " + placement.getCpuSet();
+    }
+
     public String asTime(Long time) {
         if (time == null) {
             return "";
@@ -74,6 +117,39 @@ public class VirtualMachineManagementServer implements Describable<VirtualMachin
         rsp.sendRedirect(".");
     }
 
+    public boolean isDraining() {
+        return theCloud.isDraining();
+    }
+
+    public boolean isClustered() {
+        return !HypervisorCluster.of(theCloud).isEmpty();
+    }
+
+    /**
+     * Live-migrates the agent domains running on this hypervisor to the other
+     * members of its clusters in the background, or takes the hypervisor back
+     * into service.
+     */
+    @POST
+    public void doDrain(@QueryParameter("undrain") boolean undrain, StaplerRequest req, StaplerResponse rsp)
+            throws IOException {
+        if (!Jenkins.get().hasPermission(Jenkins.ADMINISTER)) {
+            rsp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        if (undrain) {
+            theCloud.setDraining(false);
+        } else {
+            theCloud.setDraining(true);
+            theCloud.getExecutor().submit(() -> {
+                for (HypervisorCluster cluster : HypervisorCluster.of(theCloud)) {
+                    cluster.drain(theCloud);
+                }
+            });
+        }
+        rsp.sendRedirect(".");
+    }
+
     @Extension
     public static final class DescriptorImpl extends Descriptor<VirtualMachineManagementServer> {
 
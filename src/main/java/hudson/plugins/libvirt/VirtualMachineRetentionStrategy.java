@@ -0,0 +1,183 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.slaves.OfflineCause;
+import hudson.slaves.RetentionStrategy;
+import hudson.util.ListBoxModel;
+
+import jenkins.model.Jenkins;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Keeps a libvirt agent around in tiers: online while idle for a while, then
+ * paused or managed-saved so that it comes back within seconds, and only then
+ * fully stopped. Both timeouts stretch while the demand history forecasts
+ * work for the labels of the agent.
+ */
+public class VirtualMachineRetentionStrategy extends RetentionStrategy<VirtualMachineSlaveComputer> {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualMachineRetentionStrategy.class.getName());
+
+    /** Upper bound of the stretch factor applied to the timeouts. */
+    private static final double MAX_STRETCH = 3.0;
+
+    private final int idleMinutes;
+    private final int parkedMinutes;
+    private final String parkMethod;
+
+    @DataBoundConstructor
+    public VirtualMachineRetentionStrategy(int idleMinutes, int parkedMinutes, String parkMethod) {
+        this.idleMinutes = Math.max(0, idleMinutes);
+        this.parkedMinutes = Math.max(0, parkedMinutes);
+        this.parkMethod = parkMethod;
+    }
+
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    public int getParkedMinutes() {
+        return parkedMinutes;
+    }
+
+    public String getParkMethod() {
+        return parkMethod;
+    }
+
+    private TeardownPlanner.Action getParkAction() {
+        return "managedsave".equals(parkMethod) ? TeardownPlanner.Action.MANAGED_SAVE : TeardownPlanner.Action.SUSPEND;
+    }
+
+    @Override
+    public long check(VirtualMachineSlaveComputer c) {
+        VirtualMachineSlave slave = (VirtualMachineSlave) c.getNode();
+        if (slave == null) {
+            return 1;
+        }
+        long now = System.currentTimeMillis();
+        double stretch = stretch(slave, now);
+
+        if (c.isOffline()) {
+            if (!c.isConnecting() && !c.isTemporarilyOffline() && !Queue.getInstance().getBuildableItems(c).isEmpty()) {
+                LOGGER.log(Level.INFO, "Starting " + slave.getNodeName() + " for queued work.");
+                QueuePrestartListener.start(slave);
+            } else if (c.getParkAction() != null
+                       && now - c.getParkedSince() > stretched(parkedMinutes, stretch)) {
+                LOGGER.log(Level.INFO, slave.getNodeName() + " was parked for " + minutes(parkedMinutes, stretch)
+                                       + " minutes, stopping it.");
+                c.stopParked();
+            }
+            return 1;
+        }
+
+        if (c.isIdle() && c.isAcceptingTasks() && !c.isRecyclePending()
+            && now - c.getIdleStartMilliseconds() > stretched(idleMinutes, stretch)) {
+            if (parkedMinutes > 0) {
+                LOGGER.log(Level.INFO, slave.getNodeName() + " was idle for " + minutes(idleMinutes, stretch)
+                                       + " minutes, parking it.");
+                c.park(getParkAction(), new OfflineCause.ByCLI("Idle, parked by the retention strategy."));
+            } else {
+                LOGGER.log(Level.INFO, slave.getNodeName() + " was idle for " + minutes(idleMinutes, stretch)
+                                       + " minutes, stopping it.");
+                c.disconnect(new OfflineCause.ByCLI("Idle, stopped by the retention strategy."));
+            }
+        }
+        return 1;
+    }
+
+    private static long stretched(int minutes, double stretch) {
+        return (long) (TimeUnit.MINUTES.toMillis(minutes) * stretch);
+    }
+
+    /**
+     * @return the stretched timeout in whole minutes, for the log
+     */
+    private static long minutes(int minutes, double stretch) {
+        return TimeUnit.MILLISECONDS.toMinutes(stretched(minutes, stretch));
+    }
+
+    /**
+     * @return 1 without forecast work for the labels of the agent, growing
+     *         with the forecast up to {@link #MAX_STRETCH}
+     */
+    static double stretch(VirtualMachineSlave slave, long now) {
+        DemandHistory history = DemandHistory.get();
+        double forecast = 0;
+        for (String expression : history.getLabels()) {
+            Label label = expression.isEmpty() ? null : Jenkins.get().getLabel(expression);
+            boolean matches = label == null ? slave.getMode() == Node.Mode.NORMAL : label.contains(slave);
+            if (matches) {
+                forecast += history.forecastExecutors(expression, now);
+            }
+        }
+        return Math.min(MAX_STRETCH, 1 + forecast);
+    }
+
+    /**
+     * Parked state lives in memory only: after a restart, look for agents of
+     * this strategy whose domains are still paused or managed-saved.
+     */
+    @Initializer(after = InitMilestone.COMPLETED)
+    public static void restoreParks() {
+        for (Node node : Jenkins.get().getNodes()) {
+            Computer c = node.toComputer();
+            if (!(node instanceof VirtualMachineSlave) || !(c instanceof VirtualMachineSlaveComputer)) {
+                continue;
+            }
+            VirtualMachineSlave slave = (VirtualMachineSlave) node;
+            if (!(slave.getRetentionStrategy() instanceof VirtualMachineRetentionStrategy)) {
+                continue;
+            }
+            try {
+                Hypervisor hypervisor = ((VirtualMachineLauncher) slave.getLauncher()).findOurHypervisorInstance();
+                hypervisor.getExecutor().submit(() -> {
+                    try {
+                        IDomain domain = hypervisor.getDomain(slave.getVirtualMachineName());
+                        if (domain != null) {
+                            ((VirtualMachineSlaveComputer) c).restorePark(domain);
+                        }
+                    } catch (VirtException e) {
+                        LOGGER.log(Level.WARNING, "Cannot check whether " + slave.getVirtualMachineName() + " is parked: " + e);
+                    }
+                });
+            } catch (VirtException e) {
+                LOGGER.log(Level.WARNING, "Cannot find the hypervisor of " + slave.getVirtualMachineName() + ": " + e);
+            }
+        }
+    }
+
+    @Override
+    public void start(VirtualMachineSlaveComputer c) {
+        c.connect(false);
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+
+        @Override
+        public String getDisplayName() {
+            return "Keep libvirt agent warm, then suspend, then stop";
+        }
+
+        public ListBoxModel doFillParkMethodItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Pause", "suspend");
+            items.add("Managed save", "managedsave");
+            return items;
+        }
+    }
+}
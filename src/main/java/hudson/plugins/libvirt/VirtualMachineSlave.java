@@ -48,20 +48,34 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 public class VirtualMachineSlave extends Slave {
 
     static final long serialVersionUID = 1L;
     private static final Logger LOGGER = Logger.getLogger(VirtualMachineSlave.class.getName());
+    private static final int DEFAULT_SHUTDOWN_TIMEOUT_SECONDS = 0;
 
     private final String      hypervisorDescription;
-    private final String      snapshotName;
+    private String            snapshotName;
     private final String      virtualMachineName;
     private final int         startupWaitingPeriodSeconds;
     private final String      shutdownMethod;
     private final boolean     rebootAfterRun;
     private final int         startupTimesToRetryOnFailure;
     private final String      beforeJobSnapshotName;
+    private String            recycleMethod;
+    private String            overlayBaseImage;
+    private String            overlayStoragePool;
+    private String            overlayDiskTarget;
+    private int               overlaySpares;
+    private boolean           skipRecycleWhenClean;
+    private boolean           destroyOnRecycle;
+    private int               forceRecycleEvery;
+    private Integer           shutdownTimeoutSeconds;
+    private String            clusterName;
+    private String            qosProfile;
+    private String            cacheDisk;
 
     @DataBoundConstructor
     public VirtualMachineSlave(String name, String nodeDescription, String remoteFS,
@@ -117,6 +131,16 @@ public class VirtualMachineSlave extends Slave {
         return snapshotName;
     }
 
+    /**
+     * Switches the agent to another snapshot, as done by a golden image
+     * refresh. Callers persist the change through {@link jenkins.model.Jenkins#updateNode}.
+     *
+     * @param snapshotName the snapshot the domain is reverted to from now on
+     */
+    public void setSnapshotName(String snapshotName) {
+        this.snapshotName = snapshotName;
+    }
+
     public int getStartupWaitingPeriodSeconds() {
         return startupWaitingPeriodSeconds;
     }
@@ -125,6 +149,54 @@ public class VirtualMachineSlave extends Slave {
         return shutdownMethod;
     }
 
+    /**
+     * @return seconds to wait for a graceful shutdown before destroying the domain, 0 to not wait
+     */
+    public int getShutdownTimeoutSeconds() {
+        return shutdownTimeoutSeconds == null ? DEFAULT_SHUTDOWN_TIMEOUT_SECONDS : shutdownTimeoutSeconds;
+    }
+
+    @DataBoundSetter
+    public void setShutdownTimeoutSeconds(int shutdownTimeoutSeconds) {
+        this.shutdownTimeoutSeconds = shutdownTimeoutSeconds;
+    }
+
+    /**
+     * @return the name of the {@link HypervisorCluster} the domain may be started in, null to stay on its hypervisor
+     */
+    public String getClusterName() {
+        return clusterName;
+    }
+
+    @DataBoundSetter
+    public void setClusterName(String clusterName) {
+        this.clusterName = Util.fixEmptyAndTrim(clusterName);
+    }
+
+    /**
+     * @return the name of the {@link QosProfile} of this agent, null to pick one by label
+     */
+    public String getQosProfile() {
+        return qosProfile;
+    }
+
+    @DataBoundSetter
+    public void setQosProfile(String qosProfile) {
+        this.qosProfile = Util.fixEmptyAndTrim(qosProfile);
+    }
+
+    /**
+     * @return the name of the {@link CacheDisk} of this agent, null to pick one by label
+     */
+    public String getCacheDisk() {
+        return cacheDisk;
+    }
+
+    @DataBoundSetter
+    public void setCacheDisk(String cacheDisk) {
+        this.cacheDisk = Util.fixEmptyAndTrim(cacheDisk);
+    }
+
     public boolean getRebootAfterRun() {
         return rebootAfterRun;
     }
@@ -137,6 +209,95 @@ public class VirtualMachineSlave extends Slave {
         return beforeJobSnapshotName;
     }
 
+    public String getRecycleMethod() {
+        return recycleMethod == null ? "snapshot" : recycleMethod;
+    }
+
+    @DataBoundSetter
+    public void setRecycleMethod(String recycleMethod) {
+        this.recycleMethod = recycleMethod;
+    }
+
+    public String getOverlayBaseImage() {
+        return overlayBaseImage;
+    }
+
+    @DataBoundSetter
+    public void setOverlayBaseImage(String overlayBaseImage) {
+        this.overlayBaseImage = Util.fixEmptyAndTrim(overlayBaseImage);
+    }
+
+    public String getOverlayStoragePool() {
+        return overlayStoragePool == null ? "default" : overlayStoragePool;
+    }
+
+    @DataBoundSetter
+    public void setOverlayStoragePool(String overlayStoragePool) {
+        this.overlayStoragePool = Util.fixEmptyAndTrim(overlayStoragePool);
+    }
+
+    public String getOverlayDiskTarget() {
+        return overlayDiskTarget == null ? "vda" : overlayDiskTarget;
+    }
+
+    @DataBoundSetter
+    public void setOverlayDiskTarget(String overlayDiskTarget) {
+        this.overlayDiskTarget = Util.fixEmptyAndTrim(overlayDiskTarget);
+    }
+
+    public int getOverlaySpares() {
+        return overlaySpares;
+    }
+
+    @DataBoundSetter
+    public void setOverlaySpares(int overlaySpares) {
+        this.overlaySpares = overlaySpares;
+    }
+
+    public boolean getSkipRecycleWhenClean() {
+        return skipRecycleWhenClean;
+    }
+
+    @DataBoundSetter
+    public void setSkipRecycleWhenClean(boolean skipRecycleWhenClean) {
+        this.skipRecycleWhenClean = skipRecycleWhenClean;
+    }
+
+    /**
+     * @return true if a recycled domain is destroyed instead of stopped by the shutdown method
+     */
+    public boolean getDestroyOnRecycle() {
+        return destroyOnRecycle;
+    }
+
+    @DataBoundSetter
+    public void setDestroyOnRecycle(boolean destroyOnRecycle) {
+        this.destroyOnRecycle = destroyOnRecycle;
+    }
+
+    public int getForceRecycleEvery() {
+        return forceRecycleEvery;
+    }
+
+    @DataBoundSetter
+    public void setForceRecycleEvery(int forceRecycleEvery) {
+        this.forceRecycleEvery = forceRecycleEvery;
+    }
+
+    /**
+     * @return true if the writable disk is thrown away after every task
+     */
+    public boolean usesOverlayRecycle() {
+        return "overlay".equals(getRecycleMethod()) && overlayBaseImage != null;
+    }
+
+    /**
+     * @return true if the domain is reset to a pristine state after every task
+     */
+    public boolean isRecycleEnabled() {
+        return usesOverlayRecycle() || (snapshotName != null && !snapshotName.isEmpty());
+    }
+
     public ComputerLauncher getDelegateLauncher() {
         return ((VirtualMachineLauncher) getLauncher()).getDelegate();
     }
@@ -161,9 +322,19 @@ public class VirtualMachineSlave extends Slave {
             }
 
             VirtualMachineLauncher vmL = (VirtualMachineLauncher) ((SlaveComputer) c).getLauncher();
+            HypervisorCluster cluster = HypervisorCluster.find(((VirtualMachineSlave) c.getNode()).getClusterName());
+            if (cluster != null) {
+                Hypervisor placed = cluster.place(vmL.getVirtualMachineName(), c.getName());
+                if (placed == null) {
+                    throw new AbortException("No hypervisor of cluster \"" + cluster.getName()
+                                             + "\" can start " + vmL.getVirtualMachineName() + ", agent commissioning delayed.");
+                }
+                taskListener.getLogger().println("Placed on " + placed.getHypervisorDescription() + ".");
+                vmL.setActiveHypervisor(placed);
+            }
             try {
                 Hypervisor vmC = vmL.findOurHypervisorInstance();
-                if (!vmC.markVMOnline(c.getDisplayName(), vmL.getVirtualMachineName())) {
+                if (!vmC.markVMOnline(c.getName(), vmL.getVirtualMachineName())) {
                     throw new AbortException("Capacity threshold  (" + vmC.getMaxOnlineSlaves()
                                              + ") reached at hypervisor \""
                                              + vmC.getHypervisorDescription()
@@ -13,13 +13,17 @@
  */
 package hudson.plugins.libvirt;
 
+import hudson.Proc;
 import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Executor;
 import hudson.model.Node;
 import hudson.model.Queue;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
@@ -30,6 +34,9 @@ import hudson.model.User;
 import hudson.plugins.libvirt.lib.IDomain;
 import hudson.plugins.libvirt.lib.IDomainSnapshot;
 import hudson.plugins.libvirt.lib.VirtException;
+import hudson.plugins.libvirt.util.DomainXml;
+import hudson.plugins.libvirt.util.SnapshotXml;
+import hudson.remoting.VirtualChannel;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.OfflineCause;
 import hudson.slaves.SlaveComputer;
@@ -40,16 +47,96 @@ import java.io.IOException;
 public class VirtualMachineSlaveComputer extends SlaveComputer {
 
     private static final Logger LOGGER = Logger.getLogger(VirtualMachineSlaveComputer.class.getName());
+    private static final long MIN_BALLOON_BYTES = 512L * 1024 * 1024;
 
     private final TaskListener taskListener;
 
+    /**
+     * Set when the last revert restored a snapshot with memory state, which
+     * leaves the domain running. The next launch connects to it as is instead
+     * of booting the domain.
+     */
+    private volatile boolean runningAfterRevert;
+
+    /**
+     * Block write requests of the domain when the first task since the last
+     * recycle was accepted, -1 if not recorded.
+     */
+    private long writesBaseline = -1;
+    private int tasksSinceRecycle;
+
+    /**
+     * Tasks accepted but not completed yet. A due recycle waits for all of
+     * them to finish while no new tasks are accepted.
+     */
+    private int tasksInFlight;
+    private boolean recyclePending;
+    private final Object recycleLock = new Object();
+
+    /**
+     * How the retention strategy asked to stop the domain on the next
+     * disconnect, and since when the domain has been parked that way.
+     */
+    private volatile TeardownPlanner.Action parkAction;
+    private volatile long parkedSince;
+
+    /** Full display name of the job whose task was accepted last. */
+    private volatile String lastJobName;
+
+    /**
+     * Snapshot the domain was reverted to last, null once a task was
+     * accepted since.
+     */
+    private volatile String freshSnapshot;
+    private final AtomicBoolean reverting = new AtomicBoolean();
+    /** Snapshot the next launch reverts the domain to before starting it. */
+    private volatile String pendingSnapshot;
+    /** The teardown started by the last {@link #disconnect}, a launch waits for it. */
+    private volatile Future<?> pendingTeardown;
+
+    /**
+     * Whether the balloon of the domain was inflated while the agent was
+     * idle, as far as this controller knows. Shrinking and growing take the
+     * lock, so that a task accepted during a shrink still finds the full memory.
+     */
+    private boolean ballooned;
+    private final Object balloonLock = new Object();
+
     public VirtualMachineSlaveComputer(Slave slave) {
         super(slave);
         this.taskListener = new StreamTaskListener(new RewindableRotatingFileOutputStream(getLogFile(), 10));
     }
 
-    private void revertVMSnapshot(String snapshotName) {
+    /**
+     * Takes the agent offline so that its domain can be reset underneath.
+     *
+     * @param reason the offline cause shown to users
+     * @return true if the agent is offline now
+     */
+    private boolean disconnectForRecycle(String reason) {
+        try {
+            getChannel().syncLocalIO();
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.SEVERE, "Interrupted while syncing IO: " + e);
+            return false;
+        } catch (NullPointerException e) {
+            LOGGER.log(Level.SEVERE, "Could not determine channel.");
+            return false;
+        }
+
+        super.disconnect(new OfflineCause.ByCLI(reason));
+        try {
+            waitUntilOffline();
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.SEVERE, "Interrupted while waiting for computer to be offline: " + e);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean revertVMSnapshot(String snapshotName) {
         LOGGER.log(Level.INFO, "revertVMSnapshot");
+        boolean reverted = false;
 
         ComputerLauncher launcher = getLauncher();
         VirtualMachineLauncher slaveLauncher = (VirtualMachineLauncher) launcher;
@@ -62,7 +149,7 @@ public class VirtualMachineSlaveComputer extends SlaveComputer {
             hypervisor = slaveLauncher.findOurHypervisorInstance();
         } catch (VirtException e) {
             LOGGER.log(Level.SEVERE, "reverting " + vmName + " to " + snapshotName + " failed: " + e.getMessage());
-            return;
+            return false;
         }
 
         try {
@@ -71,35 +158,12 @@ public class VirtualMachineSlaveComputer extends SlaveComputer {
             
             if (domain != null) {
                 try {
-                    IDomainSnapshot snapshot = domain.snapshotLookupByName(snapshotName);
-                    try {
-                        getChannel().syncLocalIO();
-                        
-                        super.disconnect(new OfflineCause.ByCLI("Stopping " + vmName + " to revert to snapshot " + snapshotName + "."));
-                        try {
-                            waitUntilOffline();
-
-                            LOGGER.log(Level.INFO, "Reverting " + vmName + " to snapshot " + snapshotName + ".");
-                            domain.revertToSnapshot(snapshot);
-
-                            LOGGER.log(Level.INFO, "Shutting down if on " + vmName + ".");
-                            try {
-                                if (domain.isRunningOrBlocked()) {
-                                    domain.shutdown();
-                                }
-                            } catch (VirtException e) {
-                                LOGGER.log(Level.SEVERE, "Could not shutdown the domain: " + e);
-                            }
-                        } catch (InterruptedException e) {
-                            LOGGER.log(Level.SEVERE, "Interrupted while waiting for computer to be offline: " + e);
-                        }
-
-                    } catch (InterruptedException e) {
-                        LOGGER.log(Level.SEVERE, "Interrupted while syncing IO: " + e);
-                    } catch (NullPointerException e) {
-                        LOGGER.log(Level.SEVERE, "Could not determine channel.");
+                    // fail before disconnecting if there is no such snapshot
+                    domain.snapshotLookupByName(snapshotName);
+                    if (disconnectForRecycle("Stopping " + vmName + " to revert to snapshot " + snapshotName + ".")) {
+                        revertDomain(hypervisor, domain, snapshotName);
+                        reverted = true;
                     }
-
                 } catch (VirtException e) {
                     LOGGER.log(Level.SEVERE, "No snapshot named " + snapshotName + " for VM: " + e);
                 }
@@ -109,31 +173,650 @@ public class VirtualMachineSlaveComputer extends SlaveComputer {
         } catch (VirtException e) {
             LOGGER.log(Level.SEVERE, "Can't get VM domains: " + e);
         }
+        return reverted;
+    }
 
+    /**
+     * Reverts the domain of the disconnected agent to a snapshot, leaving it
+     * running only if the snapshot was taken while running.
+     */
+    private void revertDomain(Hypervisor hypervisor, IDomain domain, String snapshotName) throws VirtException {
+        String vmName = domain.getName();
+        IDomainSnapshot snapshot = domain.snapshotLookupByName(snapshotName);
+        LOGGER.log(Level.INFO, "Reverting " + vmName + " to snapshot " + snapshotName + ".");
+        runningAfterRevert = false;
+        detachCacheDisk(domain);
+        long revertStart = System.currentTimeMillis();
+        domain.revertToSnapshot(snapshot);
+        BootTimeStatistics.revertsOf(hypervisor.getHypervisorDescription(), vmName)
+                .record(System.currentTimeMillis() - revertStart);
+
+        if (snapshot.hasRunningState() && domain.isRunningOrBlocked()) {
+            LOGGER.log(Level.INFO, vmName + " is running from snapshot " + snapshotName + ", keeping it up.");
+            runningAfterRevert = true;
+        } else {
+            LOGGER.log(Level.INFO, "Shutting down if on " + vmName + ".");
+            try {
+                if (domain.isRunningOrBlocked()) {
+                    domain.shutdown();
+                }
+            } catch (VirtException e) {
+                LOGGER.log(Level.SEVERE, "Could not shutdown the domain: " + e);
+            }
+        }
     }
 
-    @Override
-    public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
-        super.taskCompleted(executor, task, durationMS);
+    /**
+     * @return the snapshot the domain was reverted to if it has not run any
+     *         task since, null otherwise
+     */
+    public String getFreshSnapshot() {
+        return freshSnapshot;
+    }
+
+    public boolean isReverting() {
+        return reverting.get();
+    }
+
+    /**
+     * Restarts the agent from the given snapshot in the background: the
+     * agent is disconnected and the launch reverts the domain before it
+     * starts it again, see {@link #revertForLaunch}.
+     *
+     * @param snapshotName the snapshot a queued job asked for
+     */
+    public void revertForJob(String snapshotName) {
+        // an offline agent is not picked, it boots from its configured snapshot
+        if (getChannel() == null || !reverting.compareAndSet(false, true)) {
+            return;
+        }
+        pendingSnapshot = snapshotName;
+        // no other build may land here before the disconnect
+        setAcceptingTasks(false);
+        Computer.threadPoolForRemoting.submit(() -> {
+            try {
+                disconnect(new OfflineCause.ByCLI("Restarting from snapshot " + snapshotName + " for a queued build.")).get();
+                connect(false).get();
+            } catch (InterruptedException | ExecutionException e) {
+                LOGGER.log(Level.WARNING, "Restarting " + getName() + " from snapshot " + snapshotName + " failed: " + e);
+            } finally {
+                pendingSnapshot = null;
+                reverting.set(false);
+                if (!isRecyclePending()) {
+                    setAcceptingTasks(true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Called by the launch before it starts the domain: reverts it to the
+     * snapshot a queued job asked for, if any.
+     *
+     * @param hypervisor the hypervisor of the domain
+     * @param domain     the domain, not connected to
+     * @param listener   the launch log
+     * @throws VirtException if the revert fails
+     */
+    void revertForLaunch(Hypervisor hypervisor, IDomain domain, TaskListener listener) throws VirtException {
+        String snapshotName = pendingSnapshot;
+        if (snapshotName == null) {
+            return;
+        }
+        pendingSnapshot = null;
+        listener.getLogger().println("Reverting to snapshot " + snapshotName + " for a queued build.");
+        if (domain.hasManagedSaveImage()) {
+            // the saved state belongs to the old disk contents
+            domain.managedSaveRemove();
+        }
+        revertDomain(hypervisor, domain, snapshotName);
+        freshSnapshot = snapshotName;
+    }
+
+    private IDomain requireDomain() throws VirtException {
+        VirtualMachineLauncher slaveLauncher = (VirtualMachineLauncher) getLauncher();
+        IDomain domain = slaveLauncher.findOurHypervisorInstance().getDomain(slaveLauncher.getVirtualMachineName());
+        if (domain == null) {
+            throw new VirtException("No VM named " + slaveLauncher.getVirtualMachineName());
+        }
+        return domain;
+    }
+
+    /**
+     * Takes a snapshot of the domain while a build runs on it.
+     *
+     * @param snapshotName the name of the new snapshot
+     * @param description  free text stored with the snapshot, may be null
+     * @throws VirtException if libvirt fails to take the snapshot
+     */
+    public void takeSnapshot(String snapshotName, String description) throws VirtException {
+        IDomain domain = requireDomain();
+        CacheDisk cacheDisk = getNode() instanceof VirtualMachineSlave ? CacheDisk.forNode((VirtualMachineSlave) getNode()) : null;
+        String excluded = cacheDisk != null && DomainXml.diskSource(domain.getXMLDesc(), cacheDisk.getTarget()) != null
+                ? cacheDisk.getTarget() : null;
+        domain.snapshotCreateXML(SnapshotXml.snapshot(snapshotName, description, excluded));
+    }
+
+    /**
+     * Takes the cache disk out of the domain before a revert, so that the
+     * revert leaves its content alone.
+     */
+    private void detachCacheDisk(IDomain domain) {
+        CacheDisk cacheDisk = getNode() instanceof VirtualMachineSlave ? CacheDisk.forNode((VirtualMachineSlave) getNode()) : null;
+        if (cacheDisk == null) {
+            return;
+        }
+        try {
+            cacheDisk.detach(domain);
+        } catch (VirtException e) {
+            LOGGER.log(Level.WARNING, "Detaching the cache disk of " + getName() + " failed: " + e);
+        }
+    }
+
+    /**
+     * Deletes a snapshot of the domain, leaving the domain itself alone.
+     *
+     * @param snapshotName the snapshot to delete
+     * @throws VirtException if libvirt fails to delete the snapshot
+     */
+    public void deleteSnapshot(String snapshotName) throws VirtException {
+        requireDomain().snapshotLookupByName(snapshotName).delete();
+    }
+
+    /**
+     * Reverts the domain to a snapshot in the middle of a build and waits
+     * for the agent to come back, so that the build can carry on with it.
+     *
+     * @param snapshotName the snapshot to revert to
+     * @param listener     the build log
+     * @throws IOException          if the revert or the reconnection failed
+     * @throws InterruptedException if interrupted while waiting for the agent
+     */
+    public void revertInBuild(String snapshotName, TaskListener listener) throws IOException, InterruptedException {
+        listener.getLogger().println("Reverting " + getName() + " to snapshot " + snapshotName + ".");
+        if (!revertVMSnapshot(snapshotName)) {
+            throw new IOException("Reverting " + getName() + " to snapshot " + snapshotName + " failed");
+        }
+        try {
+            connect(false).get();
+        } catch (ExecutionException e) {
+            throw new IOException("Reconnecting " + getName() + " after the revert failed", e);
+        }
+        if (!isOnline()) {
+            throw new IOException(getName() + " did not come back online after the revert");
+        }
+        listener.getLogger().println(getName() + " is back online.");
+    }
+
+    /**
+     * Throws the writable overlay of the domain away and puts a fresh, empty
+     * one over the base image in its place.
+     */
+    private void discardOverlay(VirtualMachineSlave slave) {
+        VirtualMachineLauncher slaveLauncher = (VirtualMachineLauncher) getLauncher();
+        String vmName = slaveLauncher.getVirtualMachineName();
+        String target = slave.getOverlayDiskTarget();
+
+        LOGGER.log(Level.INFO, "Preparing to discard overlay " + target + " of " + vmName + ".");
+
+        try {
+            Hypervisor hypervisor = slaveLauncher.findOurHypervisorInstance();
+            IDomain domain = hypervisor.getDomains().get(vmName);
+            if (domain == null) {
+                LOGGER.log(Level.SEVERE, "No VM named " + vmName);
+                return;
+            }
+            OverlayPool pool = hypervisor.getOverlayPool("node:" + slave.getNodeName() + ":" + slave.getOverlayBaseImage(),
+                                                        slave.getOverlayStoragePool(), slave.getOverlayBaseImage(),
+                                                        vmName, slave.getOverlaySpares());
+
+            if (!disconnectForRecycle("Stopping " + vmName + " to discard its overlay.")) {
+                return;
+            }
+            runningAfterRevert = false;
+            if (domain.isRunningOrBlocked()) {
+                domain.destroy();
+            }
+
+            String fresh = pool.take();
+            String xml = domain.getXMLDesc();
+            String old = DomainXml.diskSource(xml, target);
+            hypervisor.defineDomain(DomainXml.withDiskSource(xml, target, fresh));
+            LOGGER.log(Level.INFO, "Switched " + vmName + " from overlay " + old + " to " + fresh + ".");
+
+            if (old != null && !old.equals(slave.getOverlayBaseImage())) {
+                hypervisor.deleteVolume(old);
+            }
+        } catch (VirtException e) {
+            LOGGER.log(Level.SEVERE, "Discarding the overlay of " + vmName + " failed: " + e);
+        }
+    }
+
+    /**
+     * Resets the domain to a pristine state with the method configured for
+     * the node and logs how long that took.
+     */
+    private void recycle(VirtualMachineSlave slave) {
+        long start = System.currentTimeMillis();
+        String method;
+        if (slave.usesOverlayRecycle()) {
+            method = "overlay";
+            discardOverlay(slave);
+        } else {
+            method = "snapshot";
+            if (revertVMSnapshot(slave.getSnapshotName())) {
+                freshSnapshot = slave.getSnapshotName();
+            }
+        }
+        LogRecord rec = new LogRecord(Level.INFO, "Recycled {0} by {1} in {2} ms.");
+        rec.setParameters(new Object[]{slave.getVirtualMachineName(), method, System.currentTimeMillis() - start});
+        LOGGER.log(rec);
+    }
+
+    /**
+     * Returns whether the domain was left running by the last snapshot revert
+     * and clears the state, so that only the launch directly following the
+     * revert skips booting the domain.
+     *
+     * @return true if the domain is expected to be up already
+     */
+    public boolean takeRunningAfterRevert() {
+        boolean ret = runningAfterRevert;
+        runningAfterRevert = false;
+        return ret;
+    }
+
+    /**
+     * Disconnects the agent and keeps the domain warm by the given action
+     * instead of stopping it the configured way.
+     *
+     * @param action {@link TeardownPlanner.Action#SUSPEND} or {@link TeardownPlanner.Action#MANAGED_SAVE}
+     * @param cause  the offline cause shown to users
+     * @return the future of the disconnect
+     */
+    public Future<?> park(TeardownPlanner.Action action, OfflineCause cause) {
+        parkAction = action;
+        parkedSince = System.currentTimeMillis();
+        return disconnect(cause);
+    }
+
+    /**
+     * @return the action the domain was parked by, null if it is not parked
+     */
+    public TeardownPlanner.Action getParkAction() {
+        return parkAction;
+    }
+
+    public long getParkedSince() {
+        return parkedSince;
+    }
+
+    /**
+     * Picks up a domain left paused or managed-saved by a park before
+     * Jenkins restarted, so that the retention strategy still stops it once
+     * it was parked long enough. The time parked starts over.
+     *
+     * @param domain the domain of the offline agent
+     * @throws VirtException if the state of the domain cannot be read
+     */
+    void restorePark(IDomain domain) throws VirtException {
+        if (parkAction != null || getChannel() != null || isConnecting()) {
+            return;
+        }
+        TeardownPlanner.Action action = null;
+        if (domain.isPaused()) {
+            action = TeardownPlanner.Action.SUSPEND;
+        } else if (!domain.isRunningOrBlocked() && domain.hasManagedSaveImage()) {
+            action = TeardownPlanner.Action.MANAGED_SAVE;
+        }
+        if (action != null) {
+            LOGGER.log(Level.INFO, "Found " + domain.getName() + " parked by " + action + ".");
+            parkedSince = System.currentTimeMillis();
+            parkAction = action;
+        }
+    }
+
+    /**
+     * Clears the parked state, for a launch resuming the domain.
+     */
+    public void unpark() {
+        parkAction = null;
+    }
+
+    /**
+     * Fully stops a parked domain, dropping the memory kept for it.
+     */
+    public void stopParked() {
+        TeardownPlanner.Action action = parkAction;
+        VirtualMachineSlave slave = (VirtualMachineSlave) getNode();
+        if (action == null || slave == null) {
+            return;
+        }
+        parkAction = null;
+        try {
+            Hypervisor hypervisor = ((VirtualMachineLauncher) getLauncher()).findOurHypervisorInstance();
+            hypervisor.getExecutor().submit(() -> {
+                try {
+                    IDomain domain = hypervisor.getDomain(slave.getVirtualMachineName());
+                    if (domain == null) {
+                        return;
+                    }
+                    LOGGER.log(Level.INFO, "Stopping parked " + slave.getVirtualMachineName() + ".");
+                    if (domain.isPaused()) {
+                        domain.destroy();
+                    } else if (domain.hasManagedSaveImage()) {
+                        domain.managedSaveRemove();
+                    }
+                } catch (VirtException e) {
+                    LOGGER.log(Level.WARNING, "Stopping parked " + slave.getVirtualMachineName() + " failed: " + e);
+                }
+            });
+        } catch (VirtException e) {
+            LOGGER.log(Level.WARNING, "Cannot find the hypervisor of " + slave.getVirtualMachineName() + ": " + e);
+        }
+    }
+
+    /**
+     * Sums up the block write requests of all disks of the domain.
+     *
+     * @return the write requests since the domain started, -1 if unknown
+     */
+    private long readBlockWrites(VirtualMachineSlave slave) {
+        try {
+            Hypervisor hypervisor = ((VirtualMachineLauncher) getLauncher()).findOurHypervisorInstance();
+            IDomain domain = hypervisor.getDomains().get(slave.getVirtualMachineName());
+            if (domain == null) {
+                return -1;
+            }
+            // builds are expected to write to the cache disk, that does not make the OS disk dirty
+            CacheDisk cacheDisk = CacheDisk.forNode(slave);
+            long writes = 0;
+            for (Map.Entry<String, Long> diskWrites : domain.getBlockWriteRequests().entrySet()) {
+                if (cacheDisk == null || !cacheDisk.getTarget().equals(diskWrites.getKey())) {
+                    writes += diskWrites.getValue();
+                }
+            }
+            return writes;
+        } catch (VirtException e) {
+            LOGGER.log(Level.WARNING, "Cannot read block statistics of " + slave.getVirtualMachineName() + ": " + e);
+            return -1;
+        }
+    }
+
+    /**
+     * Flushes the page cache of the guest, so that everything a task wrote
+     * shows up in the block statistics.
+     */
+    private void syncGuest(VirtualMachineSlave slave) {
+        if (!Boolean.TRUE.equals(isUnix())) {
+            return;
+        }
+        try {
+            Proc proc = slave.createLauncher(taskListener).launch().cmds("sync").quiet(true).start();
+            proc.joinWithTimeout(60, TimeUnit.SECONDS, taskListener);
+        } catch (IOException | InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Cannot sync the disks of " + slave.getVirtualMachineName() + ": " + e);
+        }
+    }
+
+    /** What a completed task leaves to do about a recycle. */
+    enum DrainStep {
+        /** No recycle is due. */
+        NONE,
+        /** A recycle is due, other tasks still run and no new ones are accepted. */
+        WAIT,
+        /** The last running task is done, recycle now. */
+        RECYCLE
+    }
+
+    /**
+     * Decides how to go on after a task completed: a due recycle waits for
+     * the other running tasks to finish.
+     *
+     * @param pending  whether a recycle was already waiting
+     * @param due      whether this task made a recycle due
+     * @param inFlight the tasks still running, this one not included
+     * @return the next step
+     */
+    static DrainStep drainStep(boolean pending, boolean due, int inFlight) {
+        if (!pending && !due) {
+            return DrainStep.NONE;
+        }
+        return inFlight == 0 ? DrainStep.RECYCLE : DrainStep.WAIT;
+    }
+
+    /**
+     * Decides whether the domain has to be recycled after a task. Without
+     * any block writes since the first task was accepted the domain is still
+     * pristine, unless the node wants a recycle every so many tasks anyway.
+     *
+     * @param skipWhenClean     whether a clean domain may skip the recycle
+     * @param forceEvery        recycle after this many tasks regardless, 0 for never
+     * @param tasksSinceRecycle tasks completed since the last recycle, this one included
+     * @param baseline          the block writes when the first task was accepted, -1 if unknown
+     * @param writes            the block writes now, -1 if unknown
+     * @return true if the domain has to be recycled
+     */
+    static boolean needsRecycle(boolean skipWhenClean, int forceEvery, int tasksSinceRecycle,
+                                long baseline, long writes) {
+        if (!skipWhenClean) {
+            return true;
+        }
+        if (forceEvery > 0 && tasksSinceRecycle >= forceEvery) {
+            return true;
+        }
+        return baseline < 0 || writes < 0 || writes != baseline;
+    }
+
+    /**
+     * Syncs the guest and reads its block writes, the same way for the
+     * baseline and for the check after a task. Called without holding
+     * {@link #recycleLock}, as both take a while.
+     */
+    private long readSyncedBlockWrites(VirtualMachineSlave slave) {
+        syncGuest(slave);
+        return readBlockWrites(slave);
+    }
+
+    /**
+     * @return true while the agent drains its running tasks before a recycle
+     */
+    public boolean isRecyclePending() {
+        synchronized (recycleLock) {
+            return recyclePending;
+        }
+    }
+
+    private void afterTask() {
         Node node = this.getNode();
+        if (!(node instanceof VirtualMachineSlave)) {
+            return;
+        }
         VirtualMachineSlave slave = (VirtualMachineSlave) node;
-        String snapshotName = slave.getSnapshotName();
-        if (!snapshotName.isEmpty()) {
-            revertVMSnapshot(snapshotName);
+        boolean ephemeral = node instanceof EphemeralVirtualMachineSlave;
+        long writes = -1;
+        if (!ephemeral && slave.isRecycleEnabled() && slave.getSkipRecycleWhenClean() && !isRecyclePending()) {
+            writes = readSyncedBlockWrites(slave);
+        }
+        boolean recycleNow;
+        synchronized (recycleLock) {
+            if (tasksInFlight > 0) {
+                tasksInFlight--;
+            }
+            boolean due = false;
+            if (!recyclePending && !ephemeral && slave.isRecycleEnabled()) {
+                tasksSinceRecycle++;
+                due = needsRecycle(slave.getSkipRecycleWhenClean(), slave.getForceRecycleEvery(),
+                                   tasksSinceRecycle, writesBaseline, writes);
+                if (!due) {
+                    LOGGER.log(Level.INFO, "No block writes on " + slave.getVirtualMachineName() + ", skipping recycle.");
+                } else if (slave.getForceRecycleEvery() > 0 && tasksSinceRecycle >= slave.getForceRecycleEvery()) {
+                    LOGGER.log(Level.INFO, "Forcing recycle of " + slave.getVirtualMachineName() + " after " + tasksSinceRecycle + " tasks.");
+                }
+            }
+            DrainStep step = drainStep(recyclePending, ephemeral || due, tasksInFlight);
+            if (!recyclePending && step != DrainStep.NONE) {
+                // stop taking new work so the queue routes around us while we drain
+                setAcceptingTasks(false);
+            }
+            recyclePending = step == DrainStep.WAIT;
+            recycleNow = step == DrainStep.RECYCLE;
+            if (recycleNow) {
+                writesBaseline = -1;
+                tasksSinceRecycle = 0;
+            } else if (recyclePending) {
+                LOGGER.log(Level.INFO, "Recycle of " + slave.getVirtualMachineName() + " waits for "
+                                       + tasksInFlight + " running tasks.");
+            }
+        }
+        if (!recycleNow) {
+            return;
+        }
+        if (ephemeral) {
+            ((EphemeralVirtualMachineSlave) node).terminate();
+            return;
+        }
+        try {
+            recycle(slave);
+        } finally {
+            setAcceptingTasks(true);
+        }
+    }
+
+    /**
+     * Inflates the balloon of the domain down to the given share of its
+     * memory, unless the agent took a task meanwhile.
+     *
+     * @param percent the percentage of its maximum memory the guest keeps
+     * @return true if the domain was shrunk
+     */
+    public boolean shrinkBalloon(int percent) {
+        synchronized (balloonLock) {
+            if (ballooned || !isOnline() || !isIdle() || parkAction != null || reverting.get()) {
+                return false;
+            }
+            try {
+                IDomain domain = requireDomain();
+                long max = domain.getMaxMemory();
+                long target = Math.max(MIN_BALLOON_BYTES, max / 100 * percent);
+                if (target >= domain.getMemory()) {
+                    return false;
+                }
+                LOGGER.log(Level.INFO, "Shrinking idle " + getName() + " to " + target / (1024 * 1024) + " MiB.");
+                domain.setMemory(target);
+                ballooned = true;
+                return true;
+            } catch (VirtException e) {
+                LOGGER.log(Level.WARNING, "Shrinking the balloon of " + getName() + " failed: " + e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Gives a domain shrunk by {@link #shrinkBalloon} its full memory back.
+     * Domains this computer did not shrink keep the memory they were
+     * defined with. The libvirt calls run on the executor of the hypervisor,
+     * not in the task accept path.
+     */
+    private void growBalloon() {
+        synchronized (balloonLock) {
+            if (!ballooned) {
+                return;
+            }
+            ballooned = false;
+        }
+        Hypervisor hypervisor;
+        try {
+            hypervisor = ((VirtualMachineLauncher) getLauncher()).findOurHypervisorInstance();
+        } catch (VirtException e) {
+            LOGGER.log(Level.WARNING, "Growing the balloon of " + getName() + " failed: " + e);
+            return;
+        }
+        if (hypervisor.getBalloonIdleMinutes() <= 0) {
+            return;
+        }
+        hypervisor.getExecutor().submit(() -> {
+            synchronized (balloonLock) {
+                try {
+                    IDomain domain = requireDomain();
+                    long max = domain.getMaxMemory();
+                    if (domain.getMemory() < max) {
+                        domain.setMemory(max);
+                        LOGGER.log(Level.INFO, "Grew " + getName() + " back to full memory.");
+                    }
+                } catch (VirtException e) {
+                    LOGGER.log(Level.WARNING, "Growing the balloon of " + getName() + " failed: " + e);
+                }
+            }
+        });
+    }
+
+    public boolean isBallooned() {
+        synchronized (balloonLock) {
+            return ballooned;
+        }
+    }
+
+    /**
+     * @return the full display name of the job that ran here last, null if none did
+     */
+    public String getLastJobName() {
+        return lastJobName;
+    }
+
+    /**
+     * @return true if the domain has been reset and not run anything since
+     */
+    public boolean isPristine() {
+        VirtualMachineSlave slave = (VirtualMachineSlave) getNode();
+        synchronized (recycleLock) {
+            return slave != null && slave.isRecycleEnabled() && tasksSinceRecycle == 0 && tasksInFlight == 0;
         }
     }
 
     @Override
-    public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
-        super.taskCompletedWithProblems(executor, task, durationMS, problems);
-        Node node = this.getNode();
+    public void taskAccepted(Executor executor, Queue.Task task) {
+        super.taskAccepted(executor, task);
+        growBalloon();
+        lastJobName = task.getOwnerTask().getFullDisplayName();
+        freshSnapshot = null;
+        synchronized (recycleLock) {
+            tasksInFlight++;
+        }
+        Node node = getNode();
+        if (!(node instanceof VirtualMachineSlave) || node instanceof EphemeralVirtualMachineSlave) {
+            return;
+        }
         VirtualMachineSlave slave = (VirtualMachineSlave) node;
-        String snapshotName = slave.getSnapshotName();
-        if (!snapshotName.isEmpty()) {
-            revertVMSnapshot(snapshotName);
+        if (slave.isRecycleEnabled() && slave.getSkipRecycleWhenClean()) {
+            boolean needed;
+            synchronized (recycleLock) {
+                needed = writesBaseline < 0;
+            }
+            if (needed) {
+                long writes = readSyncedBlockWrites(slave);
+                synchronized (recycleLock) {
+                    if (writesBaseline < 0) {
+                        writesBaseline = writes;
+                    }
+                }
+            }
         }
     }
 
+    @Override
+    public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+        super.taskCompleted(executor, task, durationMS);
+        afterTask();
+    }
+
+    @Override
+    public void taskCompletedWithProblems(Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+        super.taskCompletedWithProblems(executor, task, durationMS, problems);
+        afterTask();
+    }
+
     @Override
     public Future<?> disconnect(OfflineCause cause) {
         String reason = "unknown";
@@ -162,44 +845,83 @@ public class VirtualMachineSlaveComputer extends SlaveComputer {
             return super.disconnect(cause);
         }
 
-        LOGGER.log(Level.INFO, "Virtual machine \"" + virtualMachineName + "\" (agent \"" + getDisplayName() + "\") is to be shut down." + reason);
+        if (parkAction == null) {
+            // the domain stops and starts again with its full memory
+            synchronized (balloonLock) {
+                ballooned = false;
+            }
+        }
+        final String why = reason;
+        final Hypervisor target = hypervisor;
+        Future<?> teardown = hypervisor.getExecutor().submit(() -> {
+            teardown(slave, target, cause, why);
+            return null;
+        });
+        pendingTeardown = teardown;
+        return teardown;
+    }
+
+    /**
+     * Waits for the teardown of the last {@link #disconnect} to finish, so
+     * that a launch does not start the domain only to have it stopped by a
+     * teardown still in flight.
+     *
+     * @param listener the launch log
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void awaitTeardown(TaskListener listener) throws InterruptedException {
+        Future<?> teardown = pendingTeardown;
+        if (teardown == null || teardown.isDone()) {
+            return;
+        }
+        listener.getLogger().println("Waiting for the previous shutdown of the virtual machine to finish.");
         try {
-            getChannel().syncLocalIO();
-        } catch (InterruptedException e) {
-            LOGGER.log(Level.SEVERE, "Interrupted while syncing IO: " + e);
+            teardown.get();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "The previous teardown of " + getDisplayName() + " failed: " + e);
         }
-        
-        Future<?> ret = null;
+    }
 
-        ret = super.disconnect(cause);
+    /**
+     * Closes the agent channel, stops the domain and releases its slot at the
+     * hypervisor. Runs on the executor of the hypervisor, so that callers of
+     * {@link #disconnect(OfflineCause)} do not wait for the guest.
+     */
+    private void teardown(VirtualMachineSlave slave, Hypervisor hypervisor, OfflineCause cause, String reason) {
+        String virtualMachineName = slave.getVirtualMachineName();
+        LOGGER.log(Level.INFO, "Virtual machine \"" + virtualMachineName + "\" (agent \"" + getDisplayName() + "\") is to be shut down." + reason);
+        VirtualChannel channel = getChannel();
+        if (channel != null) {
+            try {
+                channel.syncLocalIO();
+            } catch (InterruptedException e) {
+                LOGGER.log(Level.SEVERE, "Interrupted while syncing IO: " + e);
+            }
+        }
 
+        // reset here and not in disconnect, a revert made meanwhile is for the next launch
+        runningAfterRevert = false;
         try {
-            waitUntilOffline();
+            super.disconnect(cause).get();
         } catch (InterruptedException e) {
             LOGGER.log(Level.SEVERE, "Interrupted while waiting for computer to be offline: " + e);
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Closing the channel of " + getDisplayName() + " failed: " + e);
         }
-        
+
         try {
-            Map<String, IDomain> computers = hypervisor.getDomains();
-            IDomain domain = computers.get(virtualMachineName);
+            IDomain domain = hypervisor.getDomain(virtualMachineName);
             if (domain != null) {
-                if (domain.isRunningOrBlocked()) {
-
+                TeardownPlanner.Action park = parkAction;
+                if (domain.isRunningOrBlocked() && park != null) {
+                    LOGGER.log(Level.INFO, "Parking.");
+                    TeardownPlanner.execute(slave, domain, park);
+                } else if (domain.isRunningOrBlocked()) {
                     LOGGER.log(Level.INFO, "Shutting down.");
-                    LOGGER.log(Level.INFO, "method: " + slave.getShutdownMethod());
-                    if (slave.getShutdownMethod().equals("suspend")) {
-                        domain.suspend();
-                    } else if (slave.getShutdownMethod().equals("destroy")) {
-                        domain.destroy();
-                    } else {
-                        domain.shutdown();
-                    }
-
+                    TeardownPlanner.execute(slave, domain);
                 } else {
                     LOGGER.log(Level.INFO, "Already suspended, no shutdown required.");
                 }
-                Hypervisor vmC = vmL.findOurHypervisorInstance();
-                vmC.markVMOffline(getDisplayName(), vmL.getVirtualMachineName());
             } else {
                 LogRecord rec = new LogRecord(Level.WARNING, "Can not shut down {0} on Hypervisor {1}, domain not found!");
                 rec.setParameters(new Object[]{virtualMachineName, hypervisor.getHypervisorURI()});
@@ -210,9 +932,15 @@ public class VirtualMachineSlaveComputer extends SlaveComputer {
             rec.setParameters(new Object[]{slave.getVirtualMachineName(), hypervisor.getHypervisorURI()});
             rec.setThrown(t);
             LOGGER.log(rec);
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.SEVERE, "Interrupted while shutting down " + virtualMachineName + ": " + e);
+        }
+        try {
+            // also when the domain is gone, e.g. a transient one that was destroyed
+            hypervisor.markVMOffline(getName(), virtualMachineName);
+        } catch (VirtException e) {
+            LOGGER.log(Level.WARNING, "Releasing the slot of " + virtualMachineName + " failed: " + e);
         }
-
-        return ret;
     }
 
 }
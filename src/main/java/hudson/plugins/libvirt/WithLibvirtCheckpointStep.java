@@ -0,0 +1,153 @@
+package hudson.plugins.libvirt;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.libvirt.lib.VirtException;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jenkinsci.plugins.workflow.steps.BodyExecution;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Snapshots the domain of the libvirt agent, runs the body and reverts the
+ * domain to the snapshot afterwards, whether the body succeeded or not. The
+ * temporary snapshot is deleted once reverted to.
+ */
+public class WithLibvirtCheckpointStep extends Step {
+
+    private static final Logger LOGGER = Logger.getLogger(WithLibvirtCheckpointStep.class.getName());
+
+    @DataBoundConstructor
+    public WithLibvirtCheckpointStep() {
+    }
+
+    @Override
+    public StepExecution start(StepContext context) {
+        return new Execution(context);
+    }
+
+    private static final class Execution extends StepExecution {
+
+        private static final long serialVersionUID = 1L;
+
+        private String snapshotName;
+        private BodyExecution body;
+
+        Execution(StepContext context) {
+            super(context);
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            VirtualMachineSlaveComputer c = LibvirtSnapshotStep.getComputer(getContext());
+            Run<?, ?> run = getContext().get(Run.class);
+            snapshotName = "checkpoint-" + run.getParent().getFullName().replace('/', '-') + "-" + run.getNumber()
+                           + "-" + System.currentTimeMillis();
+            getContext().get(TaskListener.class).getLogger().println("Taking checkpoint " + snapshotName + " of " + c.getName() + ".");
+            c.takeSnapshot(snapshotName, "Checkpoint of " + run.getFullDisplayName());
+            body = getContext().newBodyInvoker().withCallback(new Restore(c.getName(), snapshotName)).start();
+            return false;
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            if (body != null) {
+                // the callback of the body reverts to the checkpoint and completes the step
+                body.cancel(cause);
+            } else {
+                getContext().onFailure(cause);
+            }
+        }
+    }
+
+    /**
+     * Reverts to the checkpoint off the CPS thread once the body is done,
+     * then completes the step with the outcome of the body.
+     */
+    private static final class Restore extends BodyExecutionCallback {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String computerName;
+        private final String snapshotName;
+
+        Restore(String computerName, String snapshotName) {
+            this.computerName = computerName;
+            this.snapshotName = snapshotName;
+        }
+
+        @Override
+        public void onSuccess(StepContext context, Object result) {
+            Computer.threadPoolForRemoting.submit(() -> {
+                try {
+                    restore(context);
+                    context.onSuccess(result);
+                } catch (Exception e) {
+                    context.onFailure(e);
+                }
+            });
+        }
+
+        @Override
+        public void onFailure(StepContext context, Throwable t) {
+            Computer.threadPoolForRemoting.submit(() -> {
+                try {
+                    restore(context);
+                } catch (Exception e) {
+                    t.addSuppressed(e);
+                }
+                context.onFailure(t);
+            });
+        }
+
+        private void restore(StepContext context) throws Exception {
+            VirtualMachineSlaveComputer c = LibvirtSnapshotStep.getComputer(context);
+            c.revertInBuild(snapshotName, context.get(TaskListener.class));
+            try {
+                c.deleteSnapshot(snapshotName);
+            } catch (VirtException e) {
+                LOGGER.log(Level.WARNING, "Cannot delete checkpoint " + snapshotName + " of " + computerName + ": " + e);
+            }
+        }
+    }
+
+    @Extension(optional = true)
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public String getFunctionName() {
+            return "withLibvirtCheckpoint";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Revert the libvirt agent to its state before the block";
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            Set<Class<?>> context = new HashSet<>();
+            context.add(Computer.class);
+            context.add(Run.class);
+            context.add(TaskListener.class);
+            return Collections.unmodifiableSet(context);
+        }
+    }
+}
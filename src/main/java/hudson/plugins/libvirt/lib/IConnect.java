@@ -12,8 +12,45 @@ public interface IConnect {
 
     IDomain domainLookupByName(String c) throws VirtException;
 
+    /**
+     * @return the named domain, null if there is none
+     */
+    IDomain findDomain(String name) throws VirtException;
+
     IDomain domainLookupByID(int c) throws VirtException;
 
+    IDomain domainCreateXML(String xmlDesc) throws VirtException;
+
+    IDomain domainDefineXML(String xmlDesc) throws VirtException;
+
+    String storageVolCreateXML(String poolName, String xmlDesc) throws VirtException;
+
+    long storageVolCapacity(String path) throws VirtException;
+
+    void storageVolDelete(String path) throws VirtException;
+
+    /**
+     * @return the path of the named volume in the pool, null if there is none
+     */
+    String storageVolPath(String poolName, String name) throws VirtException;
+
+    /**
+     * @return the paths of all volumes in the pool
+     */
+    String[] storageVolPaths(String poolName) throws VirtException;
+
+    /**
+     * @return memory of the host in bytes
+     */
+    long getNodeMemory() throws VirtException;
+
+    int getNodeCpus() throws VirtException;
+
+    /**
+     * @return the capabilities XML of the host, including its NUMA topology
+     */
+    String getCapabilities() throws VirtException;
+
     void close() throws VirtException;
 
     boolean isConnected() throws VirtException;
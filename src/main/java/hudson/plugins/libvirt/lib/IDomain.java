@@ -1,11 +1,21 @@
 package hudson.plugins.libvirt.lib;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * Created by magnayn on 04/02/2014.
  */
 public interface IDomain {
     String getName() throws VirtException;
 
+    String getXMLDesc() throws VirtException;
+
+    /**
+     * @return the XML the domain is defined with, without live changes
+     */
+    String getInactiveXMLDesc() throws VirtException;
+
     String[] snapshotListNames() throws VirtException;
 
     int snapshotNum() throws VirtException;
@@ -14,6 +24,8 @@ public interface IDomain {
 
     void revertToSnapshot(IDomainSnapshot aVoid) throws VirtException;
 
+    IDomainSnapshot snapshotCreateXML(String xmlDesc) throws VirtException;
+
     void shutdown() throws VirtException;
 
     boolean isRunningOrBlocked() throws VirtException;
@@ -25,4 +37,111 @@ public interface IDomain {
     void destroy() throws VirtException;
 
     void suspend() throws VirtException;
+
+    /**
+     * Moves the running domain to another hypervisor without stopping it.
+     * Definitions are left alone on both sides.
+     *
+     * @param destination the connection to the target hypervisor
+     * @return the domain on the target hypervisor
+     */
+    IDomain migrateLive(IConnect destination) throws VirtException;
+
+    /**
+     * @return the memory the domain may use at most, in bytes
+     */
+    long getMaxMemory() throws VirtException;
+
+    /**
+     * @return the memory the balloon currently leaves to the guest, in bytes
+     */
+    long getMemory() throws VirtException;
+
+    /**
+     * Inflates or deflates the balloon of a running domain.
+     *
+     * @param bytes the memory to leave to the guest, at most {@link #getMaxMemory()}
+     */
+    void setMemory(long bytes) throws VirtException;
+
+    int getVcpuCount() throws VirtException;
+
+    /**
+     * Hot-plugs a device into the running domain, leaving its definition alone.
+     */
+    void attachDevice(String xmlDesc) throws VirtException;
+
+    /**
+     * Hot-unplugs a device from the running domain.
+     */
+    void detachDevice(String xmlDesc) throws VirtException;
+
+    /**
+     * Changes scheduler parameters of the running domain, such as
+     * <code>cpu_shares</code>, <code>vcpu_period</code> and <code>vcpu_quota</code>.
+     *
+     * @param parameters the values by parameter name, -1 for a quota means none
+     */
+    void setSchedulerParameters(Map<String, Long> parameters) throws VirtException;
+
+    /**
+     * Changes the block I/O weight of the running domain.
+     */
+    void setBlkioWeight(int weight) throws VirtException;
+
+    /**
+     * Changes the IOPS caps of a disk of the running domain, 0 for none.
+     */
+    void setBlockIoTune(String disk, long readIopsSec, long writeIopsSec) throws VirtException;
+
+    /**
+     * Changes the average bandwidth of an interface of the running domain,
+     * in KiB per second, 0 for no limit.
+     */
+    void setInterfaceBandwidth(String device, int averageKBps) throws VirtException;
+
+    /**
+     * Pins a vCPU of the running domain to the given host CPUs.
+     */
+    void pinVcpu(int vcpu, List<Integer> cpus) throws VirtException;
+
+    /**
+     * Pins the emulator threads of the running domain to the given host CPUs.
+     */
+    void pinEmulator(List<Integer> cpus) throws VirtException;
+
+    /**
+     * Binds the memory of the running domain to the given host NUMA nodes,
+     * which libvirt only allows in strict mode.
+     */
+    void setNumaNodeset(String nodeset) throws VirtException;
+
+    void resume() throws VirtException;
+
+    boolean isPaused() throws VirtException;
+
+    void managedSave() throws VirtException;
+
+    boolean hasManagedSaveImage() throws VirtException;
+
+    void managedSaveRemove() throws VirtException;
+
+    Map<String, Long> getBlockWriteRequests() throws VirtException;
+
+    /**
+     * @return the id of the running domain, which changes whenever it is started again
+     */
+    int getID() throws VirtException;
+
+    /**
+     * Reads the counters of the running domain in one pass: CPU time in
+     * nanoseconds, current memory in bytes, bytes read and written by the
+     * given disks, bytes received and sent by the given interfaces, in this
+     * order.
+     *
+     * @param into       an array of at least six elements to fill
+     * @param disks      the target devices of the disks
+     * @param interfaces the host side devices of the interfaces
+     */
+    void readStats(long[] into, List<String> disks, List<String> interfaces) throws VirtException;
 }
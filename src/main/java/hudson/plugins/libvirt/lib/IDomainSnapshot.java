@@ -4,4 +4,23 @@ package hudson.plugins.libvirt.lib;
  * Created by magnayn on 04/02/2014.
  */
 public interface IDomainSnapshot {
+    String getName() throws VirtException;
+
+    /**
+     * @return milliseconds since the epoch
+     */
+    long getCreationTime() throws VirtException;
+
+    /**
+     * @return the name of the snapshot this one was taken on top of, null for a root snapshot
+     */
+    String getParentName() throws VirtException;
+
+    boolean isCurrent() throws VirtException;
+
+    String getXMLDesc() throws VirtException;
+
+    boolean hasRunningState() throws VirtException;
+
+    void delete() throws VirtException;
 }
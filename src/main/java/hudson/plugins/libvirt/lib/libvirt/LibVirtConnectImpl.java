@@ -6,17 +6,25 @@ import hudson.plugins.libvirt.lib.IDomain;
 import hudson.plugins.libvirt.lib.VirtException;
 import org.libvirt.Connect;
 import org.libvirt.LibvirtException;
+import org.libvirt.StoragePool;
+import org.libvirt.StorageVol;
 
 /**
  * Created by magnayn on 04/02/2014.
  */
 public class LibVirtConnectImpl implements IConnect {
+    private static final long KIB = 1024L;
+
     private final Connect connect;
 
     public LibVirtConnectImpl(Connect connect) {
         this.connect = connect;
     }
 
+    Connect getConnect() {
+        return connect;
+    }
+
     public LibVirtConnectImpl(String hypervisorUri, boolean b) throws VirtException {
         try {
             this.connect = new Connect(hypervisorUri, b);
@@ -57,6 +65,17 @@ public class LibVirtConnectImpl implements IConnect {
         }
     }
 
+    public IDomain findDomain(String name) throws VirtException {
+        try {
+            return new LibVirtDomainImpl(connect.domainLookupByName(name));
+        } catch (LibvirtException e) {
+            if (e.getError() != null && e.getError().getCode() == org.libvirt.Error.ErrorNumber.VIR_ERR_NO_DOMAIN) {
+                return null;
+            }
+            throw new VirtException(e);
+        }
+    }
+
     public IDomain domainLookupByID(int c) throws VirtException {
         try {
             return new LibVirtDomainImpl(connect.domainLookupByID(c));
@@ -65,6 +84,100 @@ public class LibVirtConnectImpl implements IConnect {
         }
     }
 
+    public IDomain domainCreateXML(String xmlDesc) throws VirtException {
+        try {
+            return new LibVirtDomainImpl(connect.domainCreateXML(xmlDesc, 0));
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public IDomain domainDefineXML(String xmlDesc) throws VirtException {
+        try {
+            return new LibVirtDomainImpl(connect.domainDefineXML(xmlDesc));
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public String storageVolCreateXML(String poolName, String xmlDesc) throws VirtException {
+        try {
+            StoragePool pool = connect.storagePoolLookupByName(poolName);
+            StorageVol vol = pool.storageVolCreateXML(xmlDesc, 0);
+            return vol.getPath();
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public long storageVolCapacity(String path) throws VirtException {
+        try {
+            return connect.storageVolLookupByPath(path).getInfo().capacity;
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public String storageVolPath(String poolName, String name) throws VirtException {
+        try {
+            StoragePool pool = connect.storagePoolLookupByName(poolName);
+            for (String volume : pool.listVolumes()) {
+                if (volume.equals(name)) {
+                    return pool.storageVolLookupByName(name).getPath();
+                }
+            }
+            return null;
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public String[] storageVolPaths(String poolName) throws VirtException {
+        try {
+            StoragePool pool = connect.storagePoolLookupByName(poolName);
+            String[] names = pool.listVolumes();
+            String[] paths = new String[names.length];
+            for (int i = 0; i < names.length; i++) {
+                paths[i] = pool.storageVolLookupByName(names[i]).getPath();
+            }
+            return paths;
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public long getNodeMemory() throws VirtException {
+        try {
+            return connect.nodeInfo().memory * KIB;
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public int getNodeCpus() throws VirtException {
+        try {
+            return connect.nodeInfo().cpus;
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public String getCapabilities() throws VirtException {
+        try {
+            return connect.getCapabilities();
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public void storageVolDelete(String path) throws VirtException {
+        try {
+            connect.storageVolLookupByPath(path).delete(0);
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
     public void close() throws VirtException {
         try {
             connect.close();
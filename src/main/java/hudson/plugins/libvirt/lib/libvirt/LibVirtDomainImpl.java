@@ -1,17 +1,32 @@
 package hudson.plugins.libvirt.lib.libvirt;
 
+import hudson.plugins.libvirt.lib.IConnect;
 import hudson.plugins.libvirt.lib.IDomain;
 import hudson.plugins.libvirt.lib.IDomainSnapshot;
 import hudson.plugins.libvirt.lib.VirtException;
+import hudson.plugins.libvirt.util.DomainXml;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.libvirt.Connect;
 import org.libvirt.Domain;
+import org.libvirt.DomainBlockStats;
 import org.libvirt.DomainInfo;
+import org.libvirt.DomainInterfaceStats;
 import org.libvirt.DomainSnapshot;
 import org.libvirt.LibvirtException;
+import org.libvirt.SchedLongParameter;
+import org.libvirt.SchedParameter;
+import org.libvirt.SchedUlongParameter;
 
 /**
  * Created by magnayn on 04/02/2014.
  */
 public class LibVirtDomainImpl implements IDomain {
+    private static final long KIB = 1024L;
+    private static final int XML_INACTIVE = 2;
+    private static final long MIGRATE_LIVE = 1L;
+
     private final Domain domain;
     public LibVirtDomainImpl(Domain domain) {
         this.domain = domain;
@@ -25,6 +40,22 @@ public class LibVirtDomainImpl implements IDomain {
         }
     }
 
+    public String getXMLDesc() throws VirtException {
+        try {
+            return domain.getXMLDesc(0);
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public String getInactiveXMLDesc() throws VirtException {
+        try {
+            return domain.getXMLDesc(XML_INACTIVE);
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
     public String[] snapshotListNames() throws VirtException {
         try {
             return domain.snapshotListNames();
@@ -43,7 +74,7 @@ public class LibVirtDomainImpl implements IDomain {
 
     public IDomainSnapshot snapshotLookupByName(String snapshotName) throws VirtException {
         try {
-            return new LibVirtDomainSnapshotImpl(domain.snapshotLookupByName(snapshotName));
+            return new LibVirtDomainSnapshotImpl(domain.snapshotLookupByName(snapshotName), domain);
         } catch (LibvirtException e) {
             throw new VirtException(e);
         }
@@ -58,6 +89,14 @@ public class LibVirtDomainImpl implements IDomain {
         }
     }
 
+    public IDomainSnapshot snapshotCreateXML(String xmlDesc) throws VirtException {
+        try {
+            return new LibVirtDomainSnapshotImpl(domain.snapshotCreateXML(xmlDesc), domain);
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
     public void shutdown() throws VirtException {
         try {
             domain.shutdown();
@@ -105,4 +144,227 @@ public class LibVirtDomainImpl implements IDomain {
             throw new VirtException(e);
         }
     }
+
+    public IDomain migrateLive(IConnect destination) throws VirtException {
+        try {
+            Connect target = ((LibVirtConnectImpl) destination).getConnect();
+            return new LibVirtDomainImpl(domain.migrate(target, MIGRATE_LIVE,
+                                                        null, null, 0));
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public long getMaxMemory() throws VirtException {
+        try {
+            return domain.getInfo().maxMem * KIB;
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public long getMemory() throws VirtException {
+        try {
+            return domain.getInfo().memory * KIB;
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public void setMemory(long bytes) throws VirtException {
+        try {
+            domain.setMemory(bytes / KIB);
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public void attachDevice(String xmlDesc) throws VirtException {
+        try {
+            domain.attachDevice(xmlDesc);
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public void detachDevice(String xmlDesc) throws VirtException {
+        try {
+            domain.detachDevice(xmlDesc);
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public int getVcpuCount() throws VirtException {
+        try {
+            return domain.getInfo().nrVirtCpu;
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public void setSchedulerParameters(Map<String, Long> parameters) throws VirtException {
+        SchedParameter[] params = new SchedParameter[parameters.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : parameters.entrySet()) {
+            // libvirt types quotas as signed, the other parameters as unsigned
+            if (entry.getKey().endsWith("_quota")) {
+                SchedLongParameter param = new SchedLongParameter();
+                param.field = entry.getKey();
+                param.value = entry.getValue();
+                params[i++] = param;
+            } else {
+                SchedUlongParameter param = new SchedUlongParameter();
+                param.field = entry.getKey();
+                param.value = entry.getValue();
+                params[i++] = param;
+            }
+        }
+        try {
+            domain.setSchedulerParameters(params);
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public void setBlkioWeight(int weight) throws VirtException {
+        TypedParameters params = new TypedParameters().addUint("weight", weight);
+        TypedParameters.check(TypedParameters.libvirt().virDomainSetBlkioParameters(
+                TypedParameters.pointerOf(domain), params.toArray(), 1, TypedParameters.AFFECT_LIVE),
+                "Setting the block I/O weight");
+    }
+
+    public void setBlockIoTune(String disk, long readIopsSec, long writeIopsSec) throws VirtException {
+        TypedParameters params = new TypedParameters()
+                .addUllong("read_iops_sec", readIopsSec)
+                .addUllong("write_iops_sec", writeIopsSec);
+        TypedParameters.check(TypedParameters.libvirt().virDomainSetBlockIoTune(
+                TypedParameters.pointerOf(domain), disk, params.toArray(), 2, TypedParameters.AFFECT_LIVE),
+                "Setting the I/O caps of " + disk);
+    }
+
+    public void setInterfaceBandwidth(String device, int averageKBps) throws VirtException {
+        TypedParameters params = new TypedParameters()
+                .addUint("inbound.average", averageKBps)
+                .addUint("outbound.average", averageKBps);
+        TypedParameters.check(TypedParameters.libvirt().virDomainSetInterfaceParameters(
+                TypedParameters.pointerOf(domain), device, params.toArray(), 2, TypedParameters.AFFECT_LIVE),
+                "Setting the bandwidth of " + device);
+    }
+
+    public void pinVcpu(int vcpu, List<Integer> cpus) throws VirtException {
+        byte[] map = TypedParameters.cpuMap(cpus);
+        int[] cpumap = new int[map.length];
+        for (int i = 0; i < map.length; i++) {
+            cpumap[i] = map[i] & 0xff;
+        }
+        try {
+            domain.pinVcpu(vcpu, cpumap);
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public void pinEmulator(List<Integer> cpus) throws VirtException {
+        byte[] map = TypedParameters.cpuMap(cpus);
+        TypedParameters.check(TypedParameters.libvirt().virDomainPinEmulator(
+                TypedParameters.pointerOf(domain), map, map.length, TypedParameters.AFFECT_LIVE),
+                "Pinning the emulator threads");
+    }
+
+    public void setNumaNodeset(String nodeset) throws VirtException {
+        TypedParameters params = new TypedParameters().addString("numa_nodeset", nodeset);
+        TypedParameters.check(TypedParameters.libvirt().virDomainSetNumaParameters(
+                TypedParameters.pointerOf(domain), params.toArray(), 1, TypedParameters.AFFECT_LIVE),
+                "Binding the memory to NUMA nodes " + nodeset);
+    }
+
+    public void resume() throws VirtException {
+        try {
+            domain.resume();
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public boolean isPaused() throws VirtException {
+        try {
+            return domain.getInfo().state == DomainInfo.DomainState.VIR_DOMAIN_PAUSED;
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public void managedSave() throws VirtException {
+        try {
+            domain.managedSave();
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public boolean hasManagedSaveImage() throws VirtException {
+        try {
+            return domain.hasManagedSaveImage() == 1;
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public void managedSaveRemove() throws VirtException {
+        try {
+            domain.managedSaveRemove();
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    /**
+     * Counts write requests per disk since the domain was started, keyed by
+     * the target device. CD-ROMs and floppies are left out.
+     */
+    public Map<String, Long> getBlockWriteRequests() throws VirtException {
+        Map<String, Long> writes = new HashMap<>();
+        List<String> disks = DomainXml.diskTargets(DomainXml.parse(getXMLDesc()));
+        try {
+            for (String dev : disks) {
+                writes.put(dev, domain.blockStats(dev).wr_req);
+            }
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+        return writes;
+    }
+
+    public int getID() throws VirtException {
+        try {
+            return domain.getID();
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public void readStats(long[] into, List<String> disks, List<String> interfaces) throws VirtException {
+        try {
+            DomainInfo info = domain.getInfo();
+            into[0] = info.cpuTime;
+            into[1] = info.memory * KIB;
+            into[2] = 0;
+            into[3] = 0;
+            into[4] = 0;
+            into[5] = 0;
+            for (String disk : disks) {
+                DomainBlockStats block = domain.blockStats(disk);
+                into[2] += block.rd_bytes;
+                into[3] += block.wr_bytes;
+            }
+            for (String device : interfaces) {
+                DomainInterfaceStats net = domain.interfaceStats(device);
+                into[4] += net.rx_bytes;
+                into[5] += net.tx_bytes;
+            }
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
 }
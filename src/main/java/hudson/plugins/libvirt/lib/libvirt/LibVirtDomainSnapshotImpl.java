@@ -1,20 +1,87 @@
 package hudson.plugins.libvirt.lib.libvirt;
 
 import hudson.plugins.libvirt.lib.IDomainSnapshot;
+import hudson.plugins.libvirt.lib.VirtException;
+import hudson.plugins.libvirt.util.DomainXml;
+import org.libvirt.Domain;
 import org.libvirt.DomainSnapshot;
+import org.libvirt.LibvirtException;
+import org.w3c.dom.Element;
 
 /**
  * Created by magnayn on 04/02/2014.
  */
 public class LibVirtDomainSnapshotImpl implements IDomainSnapshot {
 
+    private static final long MSEC_PER_SEC = 1000L;
+
     private final DomainSnapshot domainSnapshot;
+    private final Domain domain;
 
-    public LibVirtDomainSnapshotImpl(DomainSnapshot domainSnapshot) {
+    public LibVirtDomainSnapshotImpl(DomainSnapshot domainSnapshot, Domain domain) {
         this.domainSnapshot = domainSnapshot;
+        this.domain = domain;
     }
 
     public DomainSnapshot getSnapshot() {
         return domainSnapshot;
     }
+
+    public String getXMLDesc() throws VirtException {
+        try {
+            return domainSnapshot.getXMLDesc();
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    public String getName() throws VirtException {
+        return DomainXml.childText(getXMLDesc(), "name");
+    }
+
+    public long getCreationTime() throws VirtException {
+        String seconds = DomainXml.childText(getXMLDesc(), "creationTime");
+        try {
+            return seconds == null ? 0 : Long.parseLong(seconds.trim()) * MSEC_PER_SEC;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public String getParentName() throws VirtException {
+        Element parent = DomainXml.firstChild(DomainXml.parse(getXMLDesc()).getDocumentElement(), "parent");
+        if (parent == null) {
+            return null;
+        }
+        Element name = DomainXml.firstChild(parent, "name");
+        return name == null ? null : name.getTextContent().trim();
+    }
+
+    public boolean isCurrent() throws VirtException {
+        try {
+            if (domain.hasCurrentSnapshot() != 1) {
+                return false;
+            }
+            String current = DomainXml.childText(domain.snapshotCurrent().getXMLDesc(), "name");
+            return current != null && current.equals(getName());
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
+
+    /**
+     * Snapshots taken from a running domain carry its memory image, reverting
+     * to them brings the domain back up in the running state.
+     */
+    public boolean hasRunningState() throws VirtException {
+        return "running".equals(DomainXml.childText(getXMLDesc(), "state"));
+    }
+
+    public void delete() throws VirtException {
+        try {
+            domainSnapshot.delete(0);
+        } catch (LibvirtException e) {
+            throw new VirtException(e);
+        }
+    }
 }
@@ -0,0 +1,167 @@
+package hudson.plugins.libvirt.lib.libvirt;
+
+import com.sun.jna.Library;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+import com.sun.jna.PointerType;
+import com.sun.jna.Structure;
+import com.sun.jna.Union;
+import hudson.plugins.libvirt.lib.VirtException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.libvirt.Domain;
+
+/**
+ * Calls the libvirt functions taking typed parameters that libvirt-java
+ * does not bind, on the native domain behind a {@link Domain}. Only live
+ * changes are made, the definition of the domain is left alone.
+ */
+final class TypedParameters {
+
+    static final int AFFECT_LIVE = 1;
+
+    private static final int FIELD_LENGTH = 80;
+    private static final int TYPE_UINT = 2;
+    private static final int TYPE_ULLONG = 4;
+    private static final int TYPE_STRING = 7;
+
+    /** The libvirt functions used, see the libvirt API reference. */
+    interface Libvirt extends Library {
+        Libvirt INSTANCE = (Libvirt) Native.loadLibrary(Platform.isWindows() ? "virt-0" : "virt", Libvirt.class);
+
+        int virDomainSetBlkioParameters(Pointer domain, Parameter[] params, int nparams, int flags);
+
+        int virDomainSetBlockIoTune(Pointer domain, String disk, Parameter[] params, int nparams, int flags);
+
+        int virDomainSetInterfaceParameters(Pointer domain, String device, Parameter[] params, int nparams, int flags);
+
+        int virDomainSetNumaParameters(Pointer domain, Parameter[] params, int nparams, int flags);
+
+        int virDomainPinEmulator(Pointer domain, byte[] cpumap, int maplen, int flags);
+
+        String virGetLastErrorMessage();
+    }
+
+    /** virTypedParameter. */
+    public static class Parameter extends Structure {
+        public byte[] field = new byte[FIELD_LENGTH];
+        public int type;
+        public Value value;
+
+        /** The union of the values of a virTypedParameter. */
+        public static class Value extends Union {
+            public int i;
+            public long l;
+            public double d;
+            public Pointer s;
+        }
+
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList("field", "type", "value");
+        }
+    }
+
+    private final Map<String, Object[]> values = new LinkedHashMap<>();
+
+    TypedParameters addUint(String name, int value) {
+        values.put(name, new Object[]{TYPE_UINT, value});
+        return this;
+    }
+
+    TypedParameters addUllong(String name, long value) {
+        values.put(name, new Object[]{TYPE_ULLONG, value});
+        return this;
+    }
+
+    TypedParameters addString(String name, String value) {
+        values.put(name, new Object[]{TYPE_STRING, value});
+        return this;
+    }
+
+    Parameter[] toArray() {
+        Parameter[] params = (Parameter[]) new Parameter().toArray(values.size());
+        int i = 0;
+        for (Map.Entry<String, Object[]> entry : values.entrySet()) {
+            Parameter param = params[i++];
+            byte[] name = entry.getKey().getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(name, 0, param.field, 0, Math.min(name.length, FIELD_LENGTH - 1));
+            param.type = (Integer) entry.getValue()[0];
+            Object value = entry.getValue()[1];
+            if (param.type == TYPE_ULLONG) {
+                param.value.setType(Long.TYPE);
+                param.value.l = (Long) value;
+            } else if (param.type == TYPE_STRING) {
+                param.value.setType(Pointer.class);
+                String s = (String) value;
+                Memory memory = new Memory(s.length() + 1L);
+                memory.setString(0, s);
+                param.value.s = memory;
+            } else {
+                param.value.setType(Integer.TYPE);
+                param.value.i = (Integer) value;
+            }
+            param.write();
+        }
+        return params;
+    }
+
+    /**
+     * @param cpus host CPU ids
+     * @return the libvirt CPU map with the bits of the CPUs set
+     */
+    static byte[] cpuMap(List<Integer> cpus) {
+        int max = 0;
+        for (int cpu : cpus) {
+            max = Math.max(max, cpu);
+        }
+        byte[] map = new byte[max / 8 + 1];
+        for (int cpu : cpus) {
+            map[cpu / 8] |= (byte) (1 << (cpu % 8));
+        }
+        return map;
+    }
+
+    /**
+     * @return the binding, once the libvirt library could be loaded
+     * @throws VirtException if it cannot be loaded
+     */
+    static Libvirt libvirt() throws VirtException {
+        try {
+            return Libvirt.INSTANCE;
+        } catch (LinkageError e) {
+            throw new VirtException("Cannot load the libvirt library", e);
+        }
+    }
+
+    /**
+     * @param result the return value of a libvirt call
+     * @param what   the call, for the message
+     * @throws VirtException if the call failed
+     */
+    static void check(int result, String what) throws VirtException {
+        if (result < 0) {
+            throw new VirtException(what + " failed: " + Libvirt.INSTANCE.virGetLastErrorMessage());
+        }
+    }
+
+    /**
+     * @return the virDomainPtr of the domain, which libvirt-java keeps to itself
+     * @throws VirtException if this libvirt-java does not have it where expected
+     */
+    static Pointer pointerOf(Domain domain) throws VirtException {
+        try {
+            Field field = Domain.class.getDeclaredField("VDP");
+            field.setAccessible(true);
+            return ((PointerType) field.get(domain)).getPointer();
+        } catch (ReflectiveOperationException | ClassCastException | SecurityException e) {
+            throw new VirtException("Cannot reach the native domain through libvirt-java", e);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package hudson.plugins.libvirt.util;
+
+import hudson.plugins.libvirt.lib.VirtException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Small helpers for reading the XML descriptions libvirt hands out for
+ * domains and snapshots.
+ */
+public final class DomainXml {
+
+    private DomainXml() {
+      //not called
+    }
+
+    public static Document parse(String xml) throws VirtException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            return builder.parse(new InputSource(new StringReader(xml)));
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            throw new VirtException("Cannot parse libvirt XML description", e);
+        }
+    }
+
+    /**
+     * Returns the text of the first direct child of the document element with
+     * the given tag name, or <code>null</code> if there is no such child.
+     *
+     * @param xml  the XML description
+     * @param name the tag name of the child element
+     * @return the trimmed text content or null
+     * @throws VirtException if the XML cannot be parsed
+     */
+    public static String childText(String xml, String name) throws VirtException {
+        Element child = firstChild(parse(xml).getDocumentElement(), name);
+        return child == null ? null : child.getTextContent().trim();
+    }
+
+    public static Element firstChild(Element parent, String name) {
+        NodeList children = parent.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node node = children.item(i);
+            if (node instanceof Element && name.equals(node.getNodeName())) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first child element with the given name, appending a new
+     * one if there is none yet.
+     *
+     * @param parent the parent element
+     * @param name   the tag name
+     * @return the existing or new child
+     */
+    public static Element ensureChild(Element parent, String name) {
+        Element child = firstChild(parent, name);
+        if (child == null) {
+            child = parent.getOwnerDocument().createElement(name);
+            parent.appendChild(child);
+        }
+        return child;
+    }
+
+    /**
+     * Sets the text of a child element, creating the child if needed.
+     *
+     * @param parent the parent element
+     * @param name   the tag name of the child
+     * @param value  the text
+     */
+    public static void setChildText(Element parent, String name, String value) {
+        ensureChild(parent, name).setTextContent(value);
+    }
+
+    public static String toXml(Node node) throws VirtException {
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            StringWriter writer = new StringWriter();
+            transformer.transform(new DOMSource(node), new StreamResult(writer));
+            return writer.toString();
+        } catch (TransformerException e) {
+            throw new VirtException("Cannot serialize libvirt XML description", e);
+        }
+    }
+
+    /**
+     * Looks up a disk of a domain by the device name it has inside the guest.
+     *
+     * @param doc    the parsed domain XML
+     * @param target the target device, e.g. vda
+     * @return the disk element or null
+     */
+    public static Element findDisk(Document doc, String target) {
+        NodeList disks = doc.getElementsByTagName("disk");
+        for (int i = 0; i < disks.getLength(); i++) {
+            Element disk = (Element) disks.item(i);
+            Element targetElement = firstChild(disk, "target");
+            if (targetElement != null && target.equals(targetElement.getAttribute("dev"))) {
+                return disk;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param doc the parsed domain XML
+     * @return the target devices of the disks of the domain, e.g. vda, without CD-ROMs
+     */
+    public static List<String> diskTargets(Document doc) {
+        List<String> targets = new ArrayList<>();
+        NodeList disks = doc.getElementsByTagName("disk");
+        for (int i = 0; i < disks.getLength(); i++) {
+            Element disk = (Element) disks.item(i);
+            Element target = firstChild(disk, "target");
+            if ("disk".equals(disk.getAttribute("device")) && target != null) {
+                targets.add(target.getAttribute("dev"));
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * @param doc the parsed domain XML
+     * @return the host side devices of the interfaces of the running domain, e.g. vnet0
+     */
+    public static List<String> interfaceTargets(Document doc) {
+        List<String> targets = new ArrayList<>();
+        NodeList interfaces = doc.getElementsByTagName("interface");
+        for (int i = 0; i < interfaces.getLength(); i++) {
+            Element target = firstChild((Element) interfaces.item(i), "target");
+            if (target != null && target.hasAttribute("dev")) {
+                targets.add(target.getAttribute("dev"));
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Returns the file backing a disk of a domain.
+     *
+     * @param xml    the domain XML
+     * @param target the target device, e.g. vda
+     * @return the file path or null if there is no such file-backed disk
+     * @throws VirtException if the XML cannot be parsed
+     */
+    public static String diskSource(String xml, String target) throws VirtException {
+        Element disk = findDisk(parse(xml), target);
+        if (disk == null) {
+            return null;
+        }
+        Element source = firstChild(disk, "source");
+        if (source == null || !source.hasAttribute("file")) {
+            return null;
+        }
+        return source.getAttribute("file");
+    }
+
+    /**
+     * Points a disk of a domain to another file.
+     *
+     * @param xml    the domain XML
+     * @param target the target device, e.g. vda
+     * @param path   the new file path
+     * @return the changed domain XML
+     * @throws VirtException if the XML cannot be parsed or has no such disk
+     */
+    public static String withDiskSource(String xml, String target, String path) throws VirtException {
+        Document doc = parse(xml);
+        Element disk = findDisk(doc, target);
+        if (disk == null) {
+            throw new VirtException("Domain has no disk " + target);
+        }
+        Element source = firstChild(disk, "source");
+        if (source == null) {
+            source = doc.createElement("source");
+            disk.appendChild(source);
+        }
+        source.setAttribute("file", path);
+        return toXml(doc);
+    }
+}
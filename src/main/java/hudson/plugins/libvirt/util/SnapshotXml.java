@@ -0,0 +1,46 @@
+package hudson.plugins.libvirt.util;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+/**
+ * Builds the XML descriptions used to take domain snapshots through libvirt.
+ */
+public final class SnapshotXml {
+
+    private SnapshotXml() {
+      //not called
+    }
+
+    /**
+     * Describes a snapshot of the whole domain, with its memory if running.
+     *
+     * @param name        the name of the new snapshot
+     * @param description free text shown by virsh, may be null
+     * @return the snapshot XML
+     */
+    public static String snapshot(String name, String description) {
+        return snapshot(name, description, null);
+    }
+
+    /**
+     * Describes a snapshot of the domain that leaves one disk out.
+     *
+     * @param name         the name of the new snapshot
+     * @param description  free text shown by virsh, may be null
+     * @param excludedDisk the target device of the disk not to snapshot, may be null
+     * @return the snapshot XML
+     */
+    public static String snapshot(String name, String description, String excludedDisk) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<domainsnapshot>");
+        sb.append("<name>").append(StringEscapeUtils.escapeXml(name)).append("</name>");
+        if (description != null) {
+            sb.append("<description>").append(StringEscapeUtils.escapeXml(description)).append("</description>");
+        }
+        if (excludedDisk != null) {
+            sb.append("<disks><disk name='").append(StringEscapeUtils.escapeXml(excludedDisk)).append("' snapshot='no'/></disks>");
+        }
+        sb.append("</domainsnapshot>");
+        return sb.toString();
+    }
+}
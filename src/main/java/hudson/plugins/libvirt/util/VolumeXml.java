@@ -0,0 +1,53 @@
+package hudson.plugins.libvirt.util;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+/**
+ * Builds the XML descriptions used to create storage volumes through libvirt.
+ */
+public final class VolumeXml {
+
+    private VolumeXml() {
+      //not called
+    }
+
+    /**
+     * Describes an empty qcow2 volume that records all writes on top of the
+     * given read-only backing image.
+     *
+     * @param name        the name of the new volume inside its pool
+     * @param backingPath the path of the base image
+     * @param capacity    the virtual size in bytes, usually that of the base image
+     * @return the volume XML
+     */
+    public static String qcow2Overlay(String name, String backingPath, long capacity) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<volume>");
+        sb.append("<name>").append(StringEscapeUtils.escapeXml(name)).append("</name>");
+        sb.append("<capacity unit='bytes'>").append(capacity).append("</capacity>");
+        sb.append("<target><format type='qcow2'/></target>");
+        sb.append("<backingStore>");
+        sb.append("<path>").append(StringEscapeUtils.escapeXml(backingPath)).append("</path>");
+        sb.append("<format type='qcow2'/>");
+        sb.append("</backingStore>");
+        sb.append("</volume>");
+        return sb.toString();
+    }
+
+    /**
+     * Describes an empty qcow2 volume without a backing image.
+     *
+     * @param name     the name of the new volume inside its pool
+     * @param capacity the virtual size in bytes
+     * @return the volume XML
+     */
+    public static String qcow2(String name, long capacity) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<volume>");
+        sb.append("<name>").append(StringEscapeUtils.escapeXml(name)).append("</name>");
+        sb.append("<capacity unit='bytes'>").append(capacity).append("</capacity>");
+        sb.append("<target><format type='qcow2'/></target>");
+        sb.append("</volume>");
+        return sb.toString();
+    }
+}
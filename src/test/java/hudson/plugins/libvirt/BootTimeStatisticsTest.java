@@ -0,0 +1,33 @@
+package hudson.plugins.libvirt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BootTimeStatisticsTest {
+
+    @Test
+    public void percentilesOfRecentBoots() {
+        BootTimeStatistics stats = new BootTimeStatistics();
+        assertEquals(-1, stats.percentile(50));
+        for (long ms = 1000; ms <= 10000; ms += 1000) {
+            stats.record(ms);
+        }
+        assertTrue(stats.isReliable());
+        assertEquals(5000, stats.percentile(50));
+        assertEquals(10000, stats.percentile(99));
+    }
+
+    @Test
+    public void keepsOnlyTheLatestSamples() {
+        BootTimeStatistics stats = new BootTimeStatistics();
+        stats.record(60000);
+        assertFalse(stats.isReliable());
+        for (int i = 0; i < BootTimeStatistics.SAMPLES; i++) {
+            stats.record(2000);
+        }
+        assertEquals(2000, stats.percentile(99));
+    }
+}
@@ -0,0 +1,65 @@
+package hudson.plugins.libvirt;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CacheDiskTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Test
+    public void keepsOneGenerationWithoutResets() {
+        CacheDisk disk = new CacheDisk("maven", "linux", "default", 20, 0, null);
+        assertEquals(0, disk.generation("agent-1", 0));
+        assertEquals(0, disk.generation("agent-1", 1000 * DAY));
+    }
+
+    @Test
+    public void rotatesOncePerResetPeriod() {
+        CacheDisk disk = new CacheDisk("maven", "linux", "default", 20, 7, null);
+        long start = 1000 * DAY;
+        int rotations = 0;
+        long previous = disk.generation("agent-1", start);
+        for (int day = 1; day <= 28; day++) {
+            long generation = disk.generation("agent-1", start + day * DAY);
+            assertTrue(generation == previous || generation == previous + 1);
+            if (generation != previous) {
+                rotations++;
+            }
+            previous = generation;
+        }
+        assertEquals(4, rotations);
+        // stable within a day
+        assertEquals(disk.generation("agent-1", start), disk.generation("agent-1", start + DAY - 1));
+    }
+
+    @Test
+    public void spreadsTheResetsOfTheAgents() {
+        CacheDisk disk = new CacheDisk("maven", "linux", "default", 20, 7, null);
+        Set<Long> resetDays = new HashSet<>();
+        for (int agent = 0; agent < 50; agent++) {
+            String vmName = "agent-" + agent;
+            for (long day = 1000; day < 1007; day++) {
+                if (disk.generation(vmName, day * DAY) != disk.generation(vmName, (day - 1) * DAY)) {
+                    resetDays.add(day);
+                }
+            }
+        }
+        assertTrue(resetDays.size() > 1);
+    }
+
+    @Test
+    public void namesOneVolumePerGeneration() {
+        CacheDisk disk = new CacheDisk("maven", "linux", "default", 20, 7, null);
+        assertEquals("agent-1-maven-cache-3.qcow2", disk.volumeName("agent-1", 3));
+        assertNotEquals(disk.volumeName("agent-1", 3), disk.volumeName("agent-1", 4));
+        assertEquals(CacheDisk.DEFAULT_TARGET, disk.getTarget());
+    }
+}
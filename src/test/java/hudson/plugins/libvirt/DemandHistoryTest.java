@@ -0,0 +1,93 @@
+package hudson.plugins.libvirt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DemandHistoryTest {
+
+    private static final long SLOT = TimeUnit.MINUTES.toMillis(DemandHistory.BUCKET_MINUTES);
+
+    @Test
+    public void foldsArrivalsIntoTheirSlot() {
+        DemandHistory history = new DemandHistory();
+        long start = 1000 * SLOT;
+        history.record("linux", start, -1);
+        history.record("linux", start + 1, -1);
+        history.roll(start + SLOT);
+
+        assertEquals(0.6, history.forecast("linux", start), 1e-9);
+        assertEquals(0.0, history.forecast("linux", start + SLOT), 1e-9);
+        assertEquals(0.0, history.forecast("windows", start), 1e-9);
+    }
+
+    @Test
+    public void decaysSlotsWithoutArrivals() {
+        DemandHistory history = new DemandHistory();
+        long start = 1000 * SLOT;
+        long week = TimeUnit.DAYS.toMillis(7);
+        history.record("", start, -1);
+        history.roll(start + SLOT);
+        history.roll(start + week);
+        history.roll(start + week + SLOT);
+
+        assertEquals(0.21, history.forecast("", start), 1e-9);
+    }
+
+    @Test
+    public void decaysSlotsSkippedWhileDown() {
+        DemandHistory history = new DemandHistory();
+        long start = 1000 * SLOT;
+        history.record("", start, -1);
+        history.roll(start + SLOT);
+        history.record("", start + SLOT, -1);
+        // nothing rolls for three slots
+        history.roll(start + 4 * SLOT);
+
+        assertEquals(0.3, history.forecast("", start), 1e-9);
+        assertEquals(0.3, history.forecast("", start + SLOT), 1e-9);
+        assertEquals(0.0, history.forecast("", start + 2 * SLOT), 1e-9);
+    }
+
+    @Test
+    public void decaysEverySlotAfterAWeekDown() {
+        DemandHistory history = new DemandHistory();
+        long start = 1000 * SLOT;
+        long week = TimeUnit.DAYS.toMillis(7);
+        history.record("", start, -1);
+        history.roll(start + SLOT);
+        history.roll(start + 2 * week + SLOT);
+
+        assertEquals(0.21, history.forecast("", start), 1e-9);
+    }
+
+    @Test
+    public void scalesArrivalsByTheirDuration() {
+        DemandHistory history = new DemandHistory();
+        long start = 1000 * SLOT;
+        history.record("long", start, 2 * SLOT);
+        history.record("short", start, SLOT / 3);
+        history.record("unknown", start, -1);
+        history.roll(start + SLOT);
+
+        assertEquals(0.6, history.forecastExecutors("long", start), 1e-9);
+        assertEquals(0.1, history.forecastExecutors("short", start), 1e-9);
+        assertEquals(0.3, history.forecastExecutors("unknown", start), 1e-9);
+    }
+
+    @Test
+    public void keepsTheHistoryWhenTheClockStepsBack() {
+        DemandHistory history = new DemandHistory();
+        long start = 1000 * SLOT;
+        history.record("", start, -1);
+        history.roll(start + SLOT);
+        history.record("", start + SLOT, -1);
+        // e.g. the end of daylight saving time or an NTP step
+        history.roll(start + SLOT - TimeUnit.HOURS.toMillis(1));
+
+        assertEquals(0.3, history.forecast("", start), 1e-9);
+        assertEquals(0.3, history.forecast("", start + SLOT), 1e-9);
+    }
+}
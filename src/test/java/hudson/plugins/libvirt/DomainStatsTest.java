@@ -0,0 +1,41 @@
+package hudson.plugins.libvirt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DomainStatsTest {
+
+    private static long[] sample(long cpuTime, long written) {
+        long[] sample = new long[DomainStats.METRICS];
+        sample[DomainStats.CPU_TIME] = cpuTime;
+        sample[DomainStats.BLOCK_WRITE] = written;
+        return sample;
+    }
+
+    @Test
+    public void ratesOverTheWindowSurviveARestart() {
+        DomainStats stats = new DomainStats();
+        assertEquals(-1, stats.rate(DomainStats.CPU_TIME, 60000), 0);
+        stats.record(0, sample(0, 0));
+        stats.record(10000, sample(10000000000L, 1000));
+        // the domain restarted, its counters start over
+        stats.record(20000, sample(5000000000L, 500));
+        assertEquals(750000000.0, stats.rate(DomainStats.CPU_TIME, 60000), 0.1);
+        assertEquals(75.0, stats.rate(DomainStats.BLOCK_WRITE, 60000), 0.1);
+        assertEquals(50.0, stats.rate(DomainStats.BLOCK_WRITE, 10000), 0.1);
+    }
+
+    @Test
+    public void keepsTheLatestSamplesInOrder() {
+        DomainStats stats = new DomainStats();
+        for (int i = 0; i < DomainStats.SAMPLES + 10; i++) {
+            stats.record(i * 1000L, sample(i, i));
+        }
+        assertEquals(DomainStats.SAMPLES, stats.size());
+        assertEquals(DomainStats.SAMPLES + 9, stats.latest(DomainStats.CPU_TIME));
+        long[][] recent = stats.since((DomainStats.SAMPLES + 5) * 1000L);
+        assertEquals(5, recent[0].length);
+        assertEquals(DomainStats.SAMPLES + 5, recent[DomainStats.BLOCK_WRITE + 1][0]);
+    }
+}
@@ -0,0 +1,27 @@
+package hudson.plugins.libvirt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EphemeralRetentionTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    @Test
+    public void terminatesAgentsIdleForLongerThanTheTimeout() {
+        long idleStart = 1000 * MINUTE;
+        assertFalse(EphemeralRetentionStrategy.idleTooLong(idleStart, idleStart + 10 * MINUTE, 10));
+        assertTrue(EphemeralRetentionStrategy.idleTooLong(idleStart, idleStart + 10 * MINUTE + 1, 10));
+    }
+
+    @Test
+    public void fallsBackToTheDefaultTimeout() {
+        assertEquals(EphemeralRetentionStrategy.DEFAULT_IDLE_MINUTES, new EphemeralRetentionStrategy(0).getIdleMinutes());
+        assertEquals(5, new EphemeralRetentionStrategy(5).getIdleMinutes());
+    }
+}
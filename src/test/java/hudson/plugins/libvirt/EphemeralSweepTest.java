@@ -0,0 +1,34 @@
+package hudson.plugins.libvirt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EphemeralSweepTest {
+
+    private static EphemeralTemplate template(String name) {
+        return new EphemeralTemplate(name, "", "", "/base.qcow2", "default", "/jenkins",
+                                     1, 0, 0, 60, 0, null);
+    }
+
+    @Test
+    public void matchesNamesGivenOutForTheTemplate() {
+        assertTrue(Hypervisor.isEphemeralName(template("build"), "build-0a1b2c3d"));
+    }
+
+    @Test
+    public void ignoresOtherDomains() {
+        EphemeralTemplate template = template("build");
+        assertFalse(Hypervisor.isEphemeralName(template, "build"));
+        assertFalse(Hypervisor.isEphemeralName(template, "build-agent"));
+        assertFalse(Hypervisor.isEphemeralName(template, "build-0a1b2c3d-x"));
+        assertFalse(Hypervisor.isEphemeralName(template, "other-0a1b2c3d"));
+    }
+
+    @Test
+    public void quotesTheTemplateName() {
+        assertFalse(Hypervisor.isEphemeralName(template("b.ild"), "bxild-0a1b2c3d"));
+        assertTrue(Hypervisor.isEphemeralName(template("b.ild"), "b.ild-0a1b2c3d"));
+    }
+}
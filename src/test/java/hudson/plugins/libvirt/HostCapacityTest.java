@@ -0,0 +1,43 @@
+package hudson.plugins.libvirt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HostCapacityTest {
+
+    private static final long GIB = 1024L * 1024 * 1024;
+
+    @Test
+    public void allowsCommittedMemoryUpToTheOvercommitRatio() {
+        HostCapacity capacity = new HostCapacity(16 * GIB, 8, 0);
+        capacity.addDomain("running", 12 * GIB, 2, true);
+        capacity.addDomain("next", 8 * GIB, 2, false);
+
+        assertNull(capacity.refuse("next", 1.5, 1.0));
+        assertEquals("memory overcommit of 1.0 reached", capacity.refuse("next", 1.0, 1.0));
+    }
+
+    @Test
+    public void refusesBeyondTheCpuRatio() {
+        HostCapacity capacity = new HostCapacity(16 * GIB, 4, 0);
+        capacity.addDomain("running", GIB, 4, true);
+        capacity.addDomain("next", GIB, 2, false);
+
+        assertEquals("CPU overcommit of 1.0 reached", capacity.refuse("next", 1.0, 1.0));
+        assertNull(capacity.refuse("next", 1.0, 2.0));
+    }
+
+    @Test
+    public void countsCommittedDomainsUntilTheNextRead() {
+        HostCapacity capacity = new HostCapacity(16 * GIB, 8, 0);
+        capacity.addDomain("first", 10 * GIB, 2, false);
+        capacity.addDomain("second", 10 * GIB, 2, false);
+
+        assertNull(capacity.refuse("second", 1.0, 1.0));
+        capacity.commit("first");
+        assertEquals("memory overcommit of 1.0 reached", capacity.refuse("second", 1.0, 1.0));
+        assertNull(capacity.refuse("first", 1.0, 1.0));
+    }
+}
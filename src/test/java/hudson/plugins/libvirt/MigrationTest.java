@@ -0,0 +1,27 @@
+package hudson.plugins.libvirt;
+
+import hudson.plugins.libvirt.lib.IDomain;
+import hudson.plugins.libvirt.lib.VirtException;
+
+import java.lang.reflect.Proxy;
+
+import org.junit.Test;
+
+public class MigrationTest {
+
+    private static IDomain withSnapshots(int snapshots) {
+        return (IDomain) Proxy.newProxyInstance(IDomain.class.getClassLoader(), new Class<?>[]{IDomain.class},
+                (proxy, method, args) -> "snapshotNum".equals(method.getName()) ? snapshots : null);
+    }
+
+    @Test
+    public void migratesDomainsWithoutSnapshots() throws Exception {
+        Hypervisor.checkMigratable("agent", withSnapshots(0));
+    }
+
+    @Test(expected = VirtException.class)
+    public void refusesDomainsWithSnapshots() throws Exception {
+        // libvirt does not carry snapshot metadata over and refuses such migrations
+        Hypervisor.checkMigratable("agent", withSnapshots(2));
+    }
+}
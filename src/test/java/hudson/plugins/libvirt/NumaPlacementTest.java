@@ -0,0 +1,72 @@
+package hudson.plugins.libvirt;
+
+import hudson.plugins.libvirt.lib.IDomain;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NumaPlacementTest {
+
+    /** Two nodes with two cores of two threads each. */
+    private static final String CAPABILITIES = "<capabilities><host><topology><cells num='2'>"
+            + "<cell id='0'><cpus num='4'>"
+            + "<cpu id='0' socket_id='0' core_id='0'/><cpu id='1' socket_id='0' core_id='1'/>"
+            + "<cpu id='4' socket_id='0' core_id='0'/><cpu id='5' socket_id='0' core_id='1'/>"
+            + "</cpus></cell>"
+            + "<cell id='1'><cpus num='4'>"
+            + "<cpu id='2' socket_id='1' core_id='0'/><cpu id='3' socket_id='1' core_id='1'/>"
+            + "<cpu id='6' socket_id='1' core_id='0'/><cpu id='7' socket_id='1' core_id='1'/>"
+            + "</cpus></cell>"
+            + "</cells></topology></host></capabilities>";
+
+    @Test
+    public void spreadsDomainsOverNodesAndCores() throws Exception {
+        NumaPlacement numa = new NumaPlacement(CAPABILITIES);
+        assertTrue(numa.isNuma());
+
+        NumaPlacement.Placement first = numa.place("a", 2);
+        assertEquals(0, first.getCell());
+        assertEquals("0,1", first.getCpuSet());
+
+        NumaPlacement.Placement second = numa.place("b", 2);
+        assertEquals(1, second.getCell());
+
+        numa.release("a");
+        assertEquals(0, numa.place("c", 2).getCell());
+        assertNull(numa.place("d", 5));
+    }
+
+    @Test
+    public void pinsVcpusEmulatorAndMemoryOfTheRunningDomain() throws Exception {
+        NumaPlacement numa = new NumaPlacement(CAPABILITIES);
+        List<String> calls = new ArrayList<>();
+        NumaPlacement.pin(recording(calls), numa.place("a", 2));
+        assertEquals(Arrays.asList("pinVcpu [0, [0]]", "pinVcpu [1, [1]]", "pinEmulator [[0, 1]]", "setNumaNodeset [0]"),
+                     calls);
+    }
+
+    @Test
+    public void unpinsToAllCpus() throws Exception {
+        NumaPlacement numa = new NumaPlacement(CAPABILITIES);
+        List<String> calls = new ArrayList<>();
+        numa.unpin(recording(calls), 1);
+        assertEquals(Arrays.asList("pinVcpu [0, [0, 1, 2, 3, 4, 5, 6, 7]]", "pinEmulator [[0, 1, 2, 3, 4, 5, 6, 7]]"),
+                     calls);
+    }
+
+    private static IDomain recording(List<String> calls) {
+        return (IDomain) Proxy.newProxyInstance(IDomain.class.getClassLoader(), new Class<?>[]{IDomain.class},
+                (proxy, method, args) -> {
+                    calls.add(method.getName() + " " + Arrays.toString(args));
+                    return null;
+                });
+    }
+}
@@ -0,0 +1,76 @@
+package hudson.plugins.libvirt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QosProfileTest {
+
+    private static final String DEFINED = "<domain><name>agent</name><devices>"
+            + "<disk type='file' device='disk'><target dev='vda'/></disk>"
+            + "<disk type='file' device='cdrom'><target dev='hdc'/></disk>"
+            + "<interface type='network'><mac address='52:54:00:aa:bb:cc'/></interface>"
+            + "</devices></domain>";
+
+    private static final String LIVE = "<domain><name>agent</name><devices>"
+            + "<disk type='file' device='disk'><target dev='vda'/></disk>"
+            + "<disk type='file' device='cdrom'><target dev='hdc'/></disk>"
+            + "<interface type='network'><mac address='52:54:00:aa:bb:cc'/><target dev='vnet0'/></interface>"
+            + "</devices></domain>";
+
+    /** As left behind by a profile that set every limit. */
+    private static final String LIVE_TUNED = "<domain><name>agent</name>"
+            + "<cputune><shares>512</shares><period>100000</period><quota>50000</quota></cputune>"
+            + "<blkiotune><weight>200</weight></blkiotune><devices>"
+            + "<disk type='file' device='disk'><target dev='vda'/><iotune><read_iops_sec>100</read_iops_sec></iotune></disk>"
+            + "<interface type='network'><mac address='52:54:00:aa:bb:cc'/><target dev='vnet0'/>"
+            + "<bandwidth><inbound average='1000'/><outbound average='1000'/></bandwidth></interface>"
+            + "</devices></domain>";
+
+    @Test
+    public void appliesTheSettingsOfTheProfile() throws Exception {
+        QosProfile profile = new QosProfile("p", "", 512, 50, 200, 100, 50, 1000);
+        QosProfile.Limits limits = QosProfile.limits(profile, DEFINED, LIVE);
+        assertEquals(Long.valueOf(512), limits.scheduler.get("cpu_shares"));
+        assertEquals(Long.valueOf(100000), limits.scheduler.get("vcpu_period"));
+        assertEquals(Long.valueOf(50000), limits.scheduler.get("vcpu_quota"));
+        assertEquals(200, limits.blkioWeight);
+        assertEquals(1, limits.iotune.size());
+        assertArrayEquals(new long[]{100, 50}, limits.iotune.get("vda"));
+        assertEquals(Integer.valueOf(1000), limits.bandwidth.get("vnet0"));
+    }
+
+    @Test
+    public void leavesAnUntunedDomainAlone() throws Exception {
+        QosProfile.Limits limits = QosProfile.limits(null, DEFINED, LIVE);
+        assertTrue(limits.scheduler.isEmpty());
+        assertEquals(0, limits.blkioWeight);
+        assertTrue(limits.iotune.isEmpty());
+        assertTrue(limits.bandwidth.isEmpty());
+    }
+
+    @Test
+    public void resetsWhatTheProfileNoLongerSets() throws Exception {
+        QosProfile.Limits limits = QosProfile.limits(null, DEFINED, LIVE_TUNED);
+        assertEquals(Long.valueOf(1024), limits.scheduler.get("cpu_shares"));
+        assertEquals(Long.valueOf(-1), limits.scheduler.get("vcpu_quota"));
+        assertEquals(500, limits.blkioWeight);
+        assertArrayEquals(new long[]{0, 0}, limits.iotune.get("vda"));
+        assertEquals(Integer.valueOf(0), limits.bandwidth.get("vnet0"));
+    }
+
+    @Test
+    public void resetsToTheDefinition() throws Exception {
+        String defined = "<domain><name>agent</name><cputune><shares>2048</shares></cputune><devices>"
+                + "<disk type='file' device='disk'><target dev='vda'/><iotune><read_iops_sec>300</read_iops_sec></iotune></disk>"
+                + "<interface type='network'><mac address='52:54:00:AA:BB:CC'/>"
+                + "<bandwidth><inbound average='4000'/></bandwidth></interface>"
+                + "</devices></domain>";
+        QosProfile.Limits limits = QosProfile.limits(null, defined, LIVE_TUNED);
+        assertEquals(Long.valueOf(2048), limits.scheduler.get("cpu_shares"));
+        assertArrayEquals(new long[]{300, 0}, limits.iotune.get("vda"));
+        assertEquals(Integer.valueOf(4000), limits.bandwidth.get("vnet0"));
+    }
+}
@@ -0,0 +1,47 @@
+package hudson.plugins.libvirt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecycleDecisionTest {
+
+    @Test
+    public void recyclesAlwaysUnlessCleanDomainsMaySkip() {
+        assertTrue(VirtualMachineSlaveComputer.needsRecycle(false, 0, 1, 100, 100));
+    }
+
+    @Test
+    public void skipsWhenNothingWasWritten() {
+        assertFalse(VirtualMachineSlaveComputer.needsRecycle(true, 0, 1, 100, 100));
+        assertTrue(VirtualMachineSlaveComputer.needsRecycle(true, 0, 1, 100, 101));
+    }
+
+    @Test
+    public void recyclesWhenTheWritesAreUnknown() {
+        assertTrue(VirtualMachineSlaveComputer.needsRecycle(true, 0, 1, -1, 100));
+        assertTrue(VirtualMachineSlaveComputer.needsRecycle(true, 0, 1, 100, -1));
+    }
+
+    @Test
+    public void forcesARecycleEverySoManyTasks() {
+        assertFalse(VirtualMachineSlaveComputer.needsRecycle(true, 3, 2, 100, 100));
+        assertTrue(VirtualMachineSlaveComputer.needsRecycle(true, 3, 3, 100, 100));
+    }
+
+    @Test
+    public void drainsRunningTasksBeforeTheRecycle() {
+        assertEquals(VirtualMachineSlaveComputer.DrainStep.NONE, VirtualMachineSlaveComputer.drainStep(false, false, 1));
+        assertEquals(VirtualMachineSlaveComputer.DrainStep.WAIT, VirtualMachineSlaveComputer.drainStep(false, true, 2));
+        // a task that is not due itself still completes a pending drain
+        assertEquals(VirtualMachineSlaveComputer.DrainStep.WAIT, VirtualMachineSlaveComputer.drainStep(true, false, 1));
+        assertEquals(VirtualMachineSlaveComputer.DrainStep.RECYCLE, VirtualMachineSlaveComputer.drainStep(true, false, 0));
+    }
+
+    @Test
+    public void recyclesASingleExecutorAgentRightAway() {
+        assertEquals(VirtualMachineSlaveComputer.DrainStep.RECYCLE, VirtualMachineSlaveComputer.drainStep(false, true, 0));
+    }
+}
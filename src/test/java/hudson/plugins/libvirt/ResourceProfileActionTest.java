@@ -0,0 +1,59 @@
+package hudson.plugins.libvirt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResourceProfileActionTest {
+
+    @Test
+    public void summarizesTheSamplesOfTheBuild() {
+        DomainStats stats = new DomainStats();
+        long[] sample = new long[DomainStats.METRICS];
+        for (int i = 0; i <= 4; i++) {
+            // two vCPUs fully busy for the first half, idle afterwards
+            sample[DomainStats.CPU_TIME] = Math.min(i, 2) * 2 * 10000000000L;
+            sample[DomainStats.BLOCK_WRITE] = i * 10L * 1024 * 1024;
+            sample[DomainStats.MEMORY] = 2048L * 1024 * 1024;
+            stats.record(1000 + i * 10000L, sample);
+        }
+        ResourceProfileAction profile = new ResourceProfileAction("vm", 2, 0);
+        profile.finish(stats.since(0));
+        assertEquals(40000, profile.getSampledMs());
+        assertEquals(50, profile.getCpuUtilization());
+        assertEquals(50, profile.getCpuSaturation());
+        assertEquals(40.0, profile.getMbWritten(), 0.01);
+        assertEquals(2048.0, profile.getPeakMemoryMb(), 0.01);
+        assertEquals(4, profile.getOffsets().length);
+        assertEquals(11, profile.getOffsets()[0]);
+        assertEquals(100, profile.getCpuPercent()[0]);
+        assertEquals(0, profile.getCpuPercent()[3]);
+        assertEquals(1024, profile.getWriteKBps()[1]);
+        assertFalse(profile.isTruncated());
+    }
+
+    @Test
+    public void reportsTheStartOfALongBuildThatWasNoLongerSampled() {
+        DomainStats stats = new DomainStats();
+        long[] sample = new long[DomainStats.METRICS];
+        long interval = DomainStatsCollection.INTERVAL_MS;
+        // one more sample than the ring keeps, the first one is lost
+        for (int i = 0; i <= DomainStats.SAMPLES; i++) {
+            stats.record(i * interval, sample);
+        }
+        ResourceProfileAction profile = new ResourceProfileAction("vm", 1, 0);
+        profile.finish(stats.since(0));
+        assertEquals(interval, profile.getUnsampledMs());
+        assertFalse(profile.isTruncated());
+
+        for (int i = DomainStats.SAMPLES + 1; i <= DomainStats.SAMPLES + 4 * 60; i++) {
+            stats.record(i * interval, sample);
+        }
+        profile = new ResourceProfileAction("vm", 1, 0);
+        profile.finish(stats.since(0));
+        assertTrue(profile.isTruncated());
+        assertEquals(60, profile.getUnsampledMinutes());
+    }
+}
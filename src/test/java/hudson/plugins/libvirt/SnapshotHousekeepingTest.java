@@ -0,0 +1,50 @@
+package hudson.plugins.libvirt;
+
+import hudson.model.ChoiceParameterDefinition;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SnapshotHousekeepingTest {
+
+    @Test
+    public void keepsWhatAgentsAndJobsCanAskFor() {
+        Map<String, Set<String>> referenced = new HashMap<>();
+        referenced.put("agent-1", new HashSet<>(Collections.singleton("base")));
+        referenced.put("agent-2", new HashSet<>());
+        Set<String> jobs = new HashSet<>(Collections.singleton("db-fixture"));
+
+        assertEquals(new HashSet<>(Arrays.asList("base", "db-fixture")),
+                     SnapshotHousekeeping.keep("agent-1", referenced, jobs));
+        assertEquals(Collections.singleton("db-fixture"), SnapshotHousekeeping.keep("agent-2", referenced, jobs));
+        // domains that back no agent are not housekept at all
+        assertNull(SnapshotHousekeeping.keep("someone-elses-vm", referenced, jobs));
+    }
+
+    @Test
+    public void snapshotParameterChoicesAndDefaultsAreReferenced() {
+        ParametersDefinitionProperty choices = new ParametersDefinitionProperty(
+                new ChoiceParameterDefinition(SnapshotSelection.PARAMETER_NAME, new String[]{"clean", "warm"}, null));
+        assertEquals(new HashSet<>(Arrays.asList("clean", "warm")), SnapshotSelection.parameterSnapshots(choices));
+
+        ParametersDefinitionProperty text = new ParametersDefinitionProperty(
+                new StringParameterDefinition(SnapshotSelection.PARAMETER_NAME, "clean", null));
+        assertEquals(Collections.singleton("clean"), SnapshotSelection.parameterSnapshots(text));
+
+        ParametersDefinitionProperty other = new ParametersDefinitionProperty(
+                new StringParameterDefinition("BRANCH", "master", null));
+        assertEquals(Collections.emptySet(), SnapshotSelection.parameterSnapshots(other));
+        assertEquals(Collections.emptySet(), SnapshotSelection.parameterSnapshots(null));
+    }
+}
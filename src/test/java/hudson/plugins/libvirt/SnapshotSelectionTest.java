@@ -0,0 +1,17 @@
+package hudson.plugins.libvirt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SnapshotSelectionTest {
+
+    @Test
+    public void buildParameterWinsOverJobProperty() {
+        assertEquals("from-parameter", SnapshotSelection.choose(" from-parameter ", "from-property"));
+        assertEquals("from-property", SnapshotSelection.choose("", "from-property"));
+        assertEquals("from-property", SnapshotSelection.choose(null, "from-property"));
+        assertNull(SnapshotSelection.choose(null, null));
+    }
+}
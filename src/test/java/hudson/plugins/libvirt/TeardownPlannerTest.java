@@ -0,0 +1,26 @@
+package hudson.plugins.libvirt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TeardownPlannerTest {
+
+    @Test
+    public void followsTheShutdownMethod() {
+        assertEquals(TeardownPlanner.Action.SUSPEND, TeardownPlanner.plan(false, "suspend", 0));
+        assertEquals(TeardownPlanner.Action.DESTROY, TeardownPlanner.plan(false, "destroy", 0));
+        assertEquals(TeardownPlanner.Action.SHUTDOWN, TeardownPlanner.plan(false, "shutdown", 0));
+    }
+
+    @Test
+    public void escalatesAShutdownOnlyWithATimeout() {
+        assertEquals(TeardownPlanner.Action.SHUTDOWN_THEN_DESTROY, TeardownPlanner.plan(false, "shutdown", 60));
+    }
+
+    @Test
+    public void destroysRecycledDomainsOnlyWhenOptedIn() {
+        assertEquals(TeardownPlanner.Action.DESTROY, TeardownPlanner.plan(true, "suspend", 0));
+        assertEquals(TeardownPlanner.Action.DESTROY, TeardownPlanner.plan(true, "shutdown", 60));
+    }
+}